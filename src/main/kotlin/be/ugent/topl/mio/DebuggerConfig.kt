@@ -20,6 +20,14 @@ class DebuggerConfig {
     val macIntegratedToolbar = properties.getProperty("mac.integratedToolbar", "false") == "true"
     val concolic = properties.getProperty("concolic", "false") == "true"
     val checkpointHistory = properties.getProperty("checkpointHistory", "false") == "true"
+    val checkpointRetention: String = properties.getProperty("checkpointRetention", "all")
+    val checkpointSpillAfter: Int? = properties.getProperty("checkpointSpillAfter")?.toInt()
+    val binarySnapshots = properties.getProperty("binarySnapshots", "false") == "true"
+    val uploadWindow = properties.getProperty("uploadWindow", "1").toInt()
+    val memoryDiffRestore = properties.getProperty("memoryDiffRestore", "false") == "true"
+    val checkpointOverhead: Int? = properties.getProperty("checkpointOverhead")?.toInt()
+    val replayWorkers = properties.getProperty("replayWorkers", "0").toInt()
+    val traceLevel = Trace.parseLevel(properties.getProperty("traceLevel", "off"))
 
     val warduinoDir: String? = properties.getProperty("warduinoDir")
     val fqbn: String? = properties.getProperty("fqbn")
@@ -0,0 +1,22 @@
+package be.ugent.topl.mio
+
+import WasmInfo
+import be.ugent.topl.mio.concolic.ConcolicAnalysisResult
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectReader
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+
+/**
+ * Shared Jackson mapper and readers. Constructing an [ObjectMapper] (and registering the Kotlin module) is expensive,
+ * while the readers are immutable and thread-safe, so they are created once and reused for every message.
+ */
+object Json {
+    val mapper: ObjectMapper = ObjectMapper().registerKotlinModule()
+
+    val checkpointReader: ObjectReader = mapper.readerFor(Checkpoint::class.java)
+    val snapshotReader: ObjectReader = mapper.readerFor(WOODDumpResponse::class.java)
+    val concolicResultReader: ObjectReader = mapper.readerFor(ConcolicAnalysisResult::class.java)
+    val wasmInfoReader: ObjectReader = mapper.readerFor(WasmInfo::class.java)
+}
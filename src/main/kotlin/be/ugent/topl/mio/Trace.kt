@@ -0,0 +1,47 @@
+package be.ugent.topl.mio
+
+/**
+ * Trace output of the debugger and the snapshot serialisation. Messages are passed as lambdas that are only called
+ * when their level is enabled, so nothing is built or printed for disabled levels. Tracing is off by default.
+ */
+object Trace {
+    enum class Level {
+        OFF,
+        // Actions of the debugger, like restoring a snapshot.
+        INFO,
+        // Messages sent to the VM and an outline of the serialised snapshots.
+        DEBUG,
+        // Every value, frame and chunk of a serialised snapshot.
+        TRACE
+    }
+
+    @Volatile
+    var level = Level.OFF
+
+    /**
+     * Receives the enabled messages, prints them by default.
+     */
+    @Volatile
+    var sink: (Level, String) -> Unit = { _, message -> println(message) }
+
+    fun isEnabled(level: Level): Boolean {
+        return level != Level.OFF && level <= this.level
+    }
+
+    inline fun log(level: Level, message: () -> String) {
+        if (isEnabled(level)) {
+            sink(level, message())
+        }
+    }
+
+    inline fun info(message: () -> String) = log(Level.INFO, message)
+
+    inline fun debug(message: () -> String) = log(Level.DEBUG, message)
+
+    inline fun trace(message: () -> String) = log(Level.TRACE, message)
+
+    fun parseLevel(level: String): Level {
+        return Level.entries.firstOrNull { it.name.equals(level.trim(), ignoreCase = true) }
+            ?: throw IllegalArgumentException("Unknown trace level \"$level\", expected one of ${Level.entries.joinToString { it.name.lowercase() }}")
+    }
+}
@@ -2,9 +2,8 @@ package be.ugent.topl.mio.concolic
 
 import be.ugent.topl.mio.debugger.MultiverseNode
 import be.ugent.topl.mio.debugger.PrimitiveNode
+import be.ugent.topl.mio.Json
 import be.ugent.topl.mio.woodstate.WOODState
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import java.util.*
 
 data class SymbolicValueMapping(val primitive: String, val arg: Int, val value: Int, val time_step: Int, val paths: List<SymbolicValueMapping>) {
@@ -33,10 +32,8 @@ fun analyse(wdcliPath: String, wasmFile: String, jsonSnapshot: String, maxInstru
         lines.add(currentLine)
         if (currentLine.startsWith("{\"paths\":")) {
             println(currentLine)
-            val objectMapper = ObjectMapper()
-            objectMapper.registerKotlinModule()
             process.destroy()
-            val result = objectMapper.readValue(currentLine, ConcolicAnalysisResult::class.java)
+            val result = Json.concolicResultReader.readValue<ConcolicAnalysisResult>(currentLine)
             //process(result)
             return ConcolicAnalysisResult(result.paths.sortedBy { it.value })
         }
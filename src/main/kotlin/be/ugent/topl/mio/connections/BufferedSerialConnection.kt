@@ -3,11 +3,16 @@ package be.ugent.topl.mio.connections
 import com.fazecast.jSerialComm.SerialPort
 import com.fazecast.jSerialComm.SerialPortDataListener
 import com.fazecast.jSerialComm.SerialPortEvent
-import java.util.*
-import java.util.concurrent.locks.ReentrantLock
+import java.io.ByteArrayOutputStream
 
 class BufferedSerialConnection(port: String, baudRate: Int = 115200) : Connection, SerialPortDataListener {
     private val serial: SerialPort = SerialPort.getCommPort(port)
+    // Written data that hasn't been flushed yet.
+    private val pendingWrites = ByteArrayOutputStream()
+    // Filled by the serial event thread and drained by the reader.
+    private val buffer = ByteRingBuffer()
+    // Only used by the serial event thread.
+    private var eventBuffer = ByteArray(4096)
 
     init {
         serial.setBaudRate(baudRate)
@@ -17,61 +22,58 @@ class BufferedSerialConnection(port: String, baudRate: Int = 115200) : Connectio
         if (!success) {
             throw Exception("Could not open port \"$port\"!")
         }
-        //serial.addDataListener()
     }
-    //val reader = BufferedInputStream(serial.inputStream, 1024 * 128)
 
     override fun bytesAvailable(): Int {
-        //return serial.bytesAvailable()
-        if (buffer.isEmpty())
-            return 0
-        return buffer.first().size
-        //return reader.available()
+        return buffer.available
     }
 
     override fun read(buf: ByteArray): Int {
-        /*val charBuffer = CharBuffer()
-        return reader.read(buf)*/
-        //return serial.readBytes(buf, buf.size)
-        //return serial.inputStream.read(buf)
-        if (buffer.isEmpty()) {
-            ByteArray(0).copyInto(buf, 0)
-            return 0
-        }
-        val r = buffer.removeFirst()
-        r.copyInto(buf)
-        return r.size
-
-        //return reader.read(buf)
+        return buffer.read(buf)
     }
 
-    private val reentrantLock = ReentrantLock()
+    override fun readBlocking(buf: ByteArray): Int {
+        return buffer.readBlocking(buf)
+    }
 
+    @Synchronized
     override fun write(buf: ByteArray) {
-        serial.writeBytes(buf, buf.size)
+        pendingWrites.write(buf)
+    }
+
+    @Synchronized
+    override fun write(buf: ByteArray, offset: Int, length: Int) {
+        pendingWrites.write(buf, offset, length)
+    }
+
+    @Synchronized
+    override fun flush() {
+        if (pendingWrites.size() > 0) {
+            // Written in one go, so the messages share USB packets.
+            pendingWrites.writeTo(serial.outputStream)
+            pendingWrites.reset()
+        }
     }
 
     override fun close() {
         serial.closePort()
+        buffer.close()
     }
 
     override fun getListeningEvents(): Int {
-        //TODO("Not yet implemented")
         return SerialPort.LISTENING_EVENT_DATA_AVAILABLE
     }
 
-    //val buffer = mutableListOf<ByteArray>()
-    private val buffer: MutableList<ByteArray> = Collections.synchronizedList(mutableListOf<ByteArray>())
     override fun serialEvent(e: SerialPortEvent) {
         if (e.eventType != SerialPort.LISTENING_EVENT_DATA_AVAILABLE) return
-        val newData = ByteArray(serial.bytesAvailable())
-        //val numRead: Int = serial.readBytes(newData, newData.size)
-        serial.readBytes(newData, newData.size)
-        //assert(numRead == newData.size)
-        //println("Read $numRead bytes. ${String(newData)}")
-        //println("Received $numRead bytes")
-        //reentrantLock.lock()
-        buffer.add(newData)
-        //reentrantLock.unlock()
+        val available = serial.bytesAvailable()
+        if (available <= 0) return
+        if (available > eventBuffer.size) {
+            eventBuffer = ByteArray(Integer.highestOneBit(available) shl 1)
+        }
+        val numRead = serial.readBytes(eventBuffer, available)
+        if (numRead > 0) {
+            buffer.write(eventBuffer, 0, numRead)
+        }
     }
 }
@@ -0,0 +1,104 @@
+package be.ugent.topl.mio.connections
+
+import java.nio.ByteBuffer
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Lock-free byte queue between one producer thread (e.g. the serial event thread) and one consumer thread (the read
+ * thread of the debugger), backed by a direct buffer of at least [capacity] bytes.
+ *
+ * The producer only advances the tail and the consumer only advances the head, both are volatile so a thread sees the
+ * bytes the other thread published before moving them. A consumer that finds the buffer empty parks until the producer
+ * publishes data, a producer that finds it full parks until the consumer frees room.
+ */
+class ByteRingBuffer(capacity: Int = 1 shl 20) {
+    private val capacity = Integer.highestOneBit(maxOf(capacity - 1, 1)) shl 1
+    private val mask = this.capacity - 1
+    private val buffer = ByteBuffer.allocateDirect(this.capacity)
+    @Volatile private var head = 0L
+    @Volatile private var tail = 0L
+    @Volatile private var closed = false
+    @Volatile private var waitingReader: Thread? = null
+    @Volatile private var waitingWriter: Thread? = null
+
+    /**
+     * The amount of bytes that can be read without blocking.
+     */
+    val available: Int
+        get() = (tail - head).toInt()
+
+    /**
+     * Appends [length] bytes of [src] starting at [offset], waiting for room if the buffer is full. Bytes written after
+     * [close] are dropped.
+     */
+    fun write(src: ByteArray, offset: Int = 0, length: Int = src.size) {
+        var written = 0
+        while (written < length && !closed) {
+            val free = capacity - (tail - head).toInt()
+            if (free == 0) {
+                waitingWriter = Thread.currentThread()
+                if (capacity == (tail - head).toInt() && !closed) {
+                    LockSupport.park(this)
+                }
+                waitingWriter = null
+                continue
+            }
+            val n = minOf(free, length - written)
+            val start = (tail and mask.toLong()).toInt()
+            val first = minOf(n, capacity - start)
+            buffer.put(start, src, offset + written, first)
+            buffer.put(0, src, offset + written + first, n - first)
+            tail += n
+            written += n
+            waitingReader?.let { LockSupport.unpark(it) }
+        }
+    }
+
+    /**
+     * Reads as many available bytes as fit in [length] bytes of [dst] starting at [offset], without blocking. Returns
+     * the amount of bytes read.
+     */
+    fun read(dst: ByteArray, offset: Int = 0, length: Int = dst.size): Int {
+        val n = minOf(available, length)
+        if (n == 0) {
+            return 0
+        }
+        val start = (head and mask.toLong()).toInt()
+        val first = minOf(n, capacity - start)
+        buffer.get(start, dst, offset, first)
+        buffer.get(0, dst, offset + first, n - first)
+        head += n
+        waitingWriter?.let { LockSupport.unpark(it) }
+        return n
+    }
+
+    /**
+     * Like [read], but waits until data is available. Returns -1 if the buffer was closed and all data has been read.
+     */
+    fun readBlocking(dst: ByteArray, offset: Int = 0, length: Int = dst.size): Int {
+        while (available == 0) {
+            if (closed) {
+                return -1
+            }
+            waitingReader = Thread.currentThread()
+            // Check again after announcing ourselves, the producer may have published data in between.
+            if (available == 0 && !closed) {
+                LockSupport.park(this)
+            }
+            waitingReader = null
+            if (Thread.interrupted()) {
+                throw InterruptedException()
+            }
+        }
+        return read(dst, offset, length)
+    }
+
+    /**
+     * Wakes up a waiting reader and writer, reading continues until the buffer is empty.
+     */
+    fun close() {
+        closed = true
+        waitingReader?.let { LockSupport.unpark(it) }
+        waitingWriter?.let { LockSupport.unpark(it) }
+    }
+}
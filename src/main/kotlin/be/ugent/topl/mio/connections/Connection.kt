@@ -5,5 +5,37 @@ import java.io.Closeable
 interface Connection : Closeable {
     fun bytesAvailable(): Int
     fun read(buf: ByteArray): Int
+
+    /**
+     * Writes [buf] to the connection. Connections may buffer written data until [flush] is called, so that a sequence
+     * of small messages is transmitted at once.
+     */
     fun write(buf: ByteArray)
+
+    /**
+     * Writes [length] bytes of [buf] starting at [offset]. The default implementation copies them, connections that
+     * can write part of an array should override this.
+     */
+    fun write(buf: ByteArray, offset: Int, length: Int) {
+        write(buf.copyOfRange(offset, offset + length))
+    }
+
+    /**
+     * Transmits the data that was buffered by [write]. Connections that write immediately don't need to override this.
+     */
+    fun flush() {}
+
+    /**
+     * Blocks until data is available and reads at most `buf.size` bytes into [buf]. Returns the amount of bytes read,
+     * or -1 if the connection has been closed.
+     *
+     * The default implementation polls [bytesAvailable], connections that can be notified of incoming data should
+     * override this.
+     */
+    fun readBlocking(buf: ByteArray): Int {
+        while (bytesAvailable() == 0) {
+            Thread.sleep(1)
+        }
+        return read(buf)
+    }
 }
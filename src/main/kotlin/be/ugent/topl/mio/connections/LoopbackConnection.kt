@@ -0,0 +1,41 @@
+package be.ugent.topl.mio.connections
+
+/**
+ * Connection to a device that lives in the same process, to test and benchmark the debugger without hardware. Bytes
+ * the device sends with [deliver] are buffered like [BufferedSerialConnection] buffers serial data, bytes written to
+ * the connection are passed to [device]. By default the device echoes everything back.
+ */
+class LoopbackConnection(
+    capacity: Int = 1 shl 20,
+    private val device: (ByteArray, LoopbackConnection) -> Unit = { data, connection -> connection.deliver(data) }
+) : Connection {
+    private val buffer = ByteRingBuffer(capacity)
+
+    /**
+     * Makes [length] bytes of [data] starting at [offset] available to the reader, as if the device sent them. Only
+     * one thread should deliver data.
+     */
+    fun deliver(data: ByteArray, offset: Int = 0, length: Int = data.size) {
+        buffer.write(data, offset, length)
+    }
+
+    override fun bytesAvailable(): Int {
+        return buffer.available
+    }
+
+    override fun read(buf: ByteArray): Int {
+        return buffer.read(buf)
+    }
+
+    override fun readBlocking(buf: ByteArray): Int {
+        return buffer.readBlocking(buf)
+    }
+
+    override fun write(buf: ByteArray) {
+        device(buf, this)
+    }
+
+    override fun close() {
+        buffer.close()
+    }
+}
@@ -13,8 +13,21 @@ class ProcessConnection(vararg command: String, private val name: String ="Proce
         return process.inputStream.read(buf)
     }
 
+    override fun readBlocking(buf: ByteArray): Int {
+        // Reading from the process output blocks until data is available or the process has exited.
+        return process.inputStream.read(buf)
+    }
+
+    // The output stream of the process is buffered, it is only flushed when asked to.
     override fun write(buf: ByteArray) {
         process.outputStream.write(buf)
+    }
+
+    override fun write(buf: ByteArray, offset: Int, length: Int) {
+        process.outputStream.write(buf, offset, length)
+    }
+
+    override fun flush() {
         process.outputStream.flush()
     }
 
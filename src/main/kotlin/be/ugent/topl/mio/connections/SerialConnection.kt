@@ -1,12 +1,23 @@
 package be.ugent.topl.mio.connections
 
 import com.fazecast.jSerialComm.SerialPort
+import com.fazecast.jSerialComm.SerialPortDataListener
+import com.fazecast.jSerialComm.SerialPortEvent
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.min
 
-class SerialConnection(port: String, baudRate: Int = 115200) : Connection {
+class SerialConnection(port: String, baudRate: Int = 115200) : Connection, SerialPortDataListener {
     private val serial: SerialPort = SerialPort.getCommPort(port)
+    // Written data that hasn't been flushed yet.
+    private val pendingWrites = ByteArrayOutputStream()
+    private val lock = ReentrantLock()
+    private val dataAvailable = lock.newCondition()
 
     init {
         serial.setBaudRate(baudRate)
+        serial.addDataListener(this)
         val success = serial.openPort()
         if (!success) {
             throw Exception("Could not open port \"$port\"!")
@@ -21,11 +32,50 @@ class SerialConnection(port: String, baudRate: Int = 115200) : Connection {
         return serial.readBytes(buf, buf.size)
     }
 
+    override fun readBlocking(buf: ByteArray): Int {
+        lock.withLock {
+            while (serial.bytesAvailable() == 0) {
+                dataAvailable.await()
+            }
+        }
+        val available = serial.bytesAvailable()
+        if (available < 0) {
+            // The port was closed.
+            return -1
+        }
+        return serial.readBytes(buf, min(available, buf.size))
+    }
+
+    @Synchronized
     override fun write(buf: ByteArray) {
-        serial.writeBytes(buf, buf.size)
+        pendingWrites.write(buf)
+    }
+
+    @Synchronized
+    override fun write(buf: ByteArray, offset: Int, length: Int) {
+        pendingWrites.write(buf, offset, length)
+    }
+
+    @Synchronized
+    override fun flush() {
+        if (pendingWrites.size() > 0) {
+            // Written in one go, so the messages share USB packets.
+            pendingWrites.writeTo(serial.outputStream)
+            pendingWrites.reset()
+        }
     }
 
     override fun close() {
         serial.closePort()
     }
+
+    override fun getListeningEvents(): Int {
+        return SerialPort.LISTENING_EVENT_DATA_AVAILABLE
+    }
+
+    override fun serialEvent(e: SerialPortEvent) {
+        lock.withLock {
+            dataAvailable.signalAll()
+        }
+    }
 }
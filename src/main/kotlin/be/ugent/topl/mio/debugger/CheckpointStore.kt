@@ -0,0 +1,84 @@
+package be.ugent.topl.mio.debugger
+
+import be.ugent.topl.mio.Json
+import be.ugent.topl.mio.woodstate.Checkpoint
+import java.io.Closeable
+import java.io.File
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+ * Append-only store for checkpoints that no longer need to be on the heap. Checkpoints are written as JSON records
+ * (a 4 byte length followed by the data) to memory-mapped segment files in [directory], a checkpoint is identified by
+ * the segment it was written to and its offset in that segment.
+ *
+ * The segment files belong to a single debugging session and are removed when the store is closed.
+ */
+class CheckpointStore(private val directory: File, private val segmentSize: Int = 64 * 1024 * 1024) : Closeable {
+    private class Segment(val file: File, val buffer: MappedByteBuffer)
+
+    private val segments = mutableListOf<Segment>()
+    private var closed = false
+
+    /**
+     * The number of bytes written to the store.
+     */
+    var bytesWritten = 0L
+        private set
+
+    init {
+        directory.mkdirs()
+    }
+
+    /**
+     * Writes [checkpoint] to the store and returns a handle to read it back with [read].
+     */
+    @Synchronized
+    fun write(checkpoint: Checkpoint): Long {
+        check(!closed) { "The checkpoint store is closed" }
+        val data = Json.mapper.writeValueAsBytes(checkpoint)
+        val recordSize = 4 + data.size
+        var segment = segments.lastOrNull()
+        if (segment == null || segment.buffer.remaining() < recordSize) {
+            segment = newSegment(maxOf(segmentSize, recordSize))
+        }
+        val offset = segment.buffer.position()
+        segment.buffer.putInt(data.size)
+        segment.buffer.put(data)
+        bytesWritten += recordSize
+        return (segments.size - 1).toLong() shl 32 or offset.toLong()
+    }
+
+    @Synchronized
+    fun read(handle: Long): Checkpoint {
+        check(!closed) { "The checkpoint store is closed" }
+        val buffer = segments[(handle ushr 32).toInt()].buffer
+        val offset = handle.toInt()
+        val data = ByteArray(buffer.getInt(offset))
+        buffer.get(offset + 4, data)
+        return Json.checkpointReader.readValue(data)
+    }
+
+    private fun newSegment(size: Int): Segment {
+        val file = File(directory, "checkpoints-${ProcessHandle.current().pid()}-${segments.size}.bin")
+        file.deleteOnExit()
+        val buffer = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE).use {
+            // The mapping stays valid after the channel is closed.
+            it.map(FileChannel.MapMode.READ_WRITE, 0, size.toLong())
+        }
+        val segment = Segment(file, buffer)
+        segments.add(segment)
+        return segment
+    }
+
+    @Synchronized
+    override fun close() {
+        closed = true
+        for (segment in segments) {
+            segment.file.delete()
+        }
+        segments.clear()
+    }
+}
@@ -0,0 +1,311 @@
+package be.ugent.topl.mio.debugger
+
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+
+/**
+ * The checkpoints received from the VM, indexed by the number of instructions executed since the start (t).
+ *
+ * It behaves like a list with one element per executed instruction that is null for every instruction that doesn't
+ * have a checkpoint, but only the real checkpoints are stored. Their times are kept in a sorted array, so the checkpoint
+ * at (or the nearest checkpoint before) a certain time is found with a binary search and dropping the end of the
+ * timeline doesn't depend on the number of instructions that are removed.
+ *
+ * With [spillTo] only the most recent checkpoints are kept on the heap, older ones are written to a [CheckpointStore]
+ * and read back when they are accessed. Every access reads a new copy, except for the checkpoint at the time given to
+ * [keepResident], so changes to the current state are not lost.
+ */
+class CheckpointTimeline : AbstractMutableList<Checkpoint?>() {
+    private class SpilledCheckpoint(val handle: Long, val summary: Checkpoint)
+
+    private var times = IntArray(16)
+    // A Checkpoint, or a SpilledCheckpoint for the ones that were moved to the store.
+    private var values = arrayOfNulls<Any>(16)
+    private var count = 0
+    private var length = 0
+    private var store: CheckpointStore? = null
+    private var residentLimit = Int.MAX_VALUE
+    // Entries before this position have been considered for spilling.
+    private var spilled = 0
+    // The time of keepResident and the copy of its checkpoint if that was read back from the store.
+    private var residentTime: Int? = null
+    private var residentCopy: Checkpoint? = null
+
+    override val size: Int
+        get() = length
+
+    /**
+     * The number of real checkpoints in the timeline.
+     */
+    val checkpointCount: Int
+        get() = count
+
+    override fun get(index: Int): Checkpoint? {
+        checkIndex(index, length)
+        val i = search(index)
+        return if (i >= 0) resolve(i) else null
+    }
+
+    override fun set(index: Int, element: Checkpoint?): Checkpoint? {
+        checkIndex(index, length)
+        val i = search(index)
+        if (i >= 0) {
+            val previous = resolve(i)
+            if (element != null) {
+                values[i] = element
+                if (index == residentTime) residentCopy = null
+                spillEntry(i)
+            } else {
+                removeEntry(i)
+            }
+            return previous
+        }
+        if (element != null) {
+            insertEntry(-i - 1, index, element)
+            spillEntry(-i - 1)
+        }
+        return null
+    }
+
+    override fun add(index: Int, element: Checkpoint?) {
+        checkIndex(index, length + 1)
+        // The times of the checkpoints change.
+        writeBackResident()
+        // Everything at or after the index moves one instruction later.
+        var i = search(index)
+        if (i < 0) i = -i - 1
+        for (j in i ..< count) {
+            times[j]++
+        }
+        length++
+        if (element != null) {
+            insertEntry(i, index, element)
+        }
+    }
+
+    override fun removeAt(index: Int): Checkpoint? {
+        checkIndex(index, length)
+        writeBackResident()
+        var i = search(index)
+        var removed: Checkpoint? = null
+        if (i >= 0) {
+            removed = resolve(i)
+            removeEntry(i)
+        } else {
+            i = -i - 1
+        }
+        for (j in i ..< count) {
+            times[j]--
+        }
+        length--
+        return removed
+    }
+
+    override fun clear() {
+        values.fill(null, 0, count)
+        count = 0
+        length = 0
+        spilled = 0
+        residentCopy = null
+    }
+
+    /**
+     * Appends [checkpoint] after [instructionsExecuted] instructions, the instructions in between have no checkpoint.
+     */
+    fun append(checkpoint: Checkpoint, instructionsExecuted: Int) {
+        length += maxOf(instructionsExecuted - 1, 0)
+        insertEntry(count, length, checkpoint)
+        length++
+        spillOldCheckpoints()
+    }
+
+    /**
+     * Moves all but the [residentLimit] most recent checkpoints to [store] from now on.
+     */
+    fun spillTo(store: CheckpointStore, residentLimit: Int) {
+        this.store = store
+        // The most recent checkpoint is used for every new checkpoint that arrives, it always stays on the heap.
+        this.residentLimit = maxOf(residentLimit, 1)
+        spillOldCheckpoints()
+    }
+
+    private fun spillOldCheckpoints() {
+        val store = store ?: return
+        while (count - spilled > residentLimit) {
+            val value = values[spilled]
+            if (value is Checkpoint) {
+                if (times[spilled] == residentTime) residentCopy = value
+                values[spilled] = SpilledCheckpoint(store.write(value), summaryOf(value))
+            }
+            spilled++
+        }
+    }
+
+    // A checkpoint that is added among the spilled ones (e.g. when replaying old history) is spilled right away.
+    private fun spillEntry(i: Int) {
+        val store = store ?: return
+        val value = values[i]
+        if (i < spilled && value is Checkpoint) {
+            if (times[i] == residentTime) residentCopy = value
+            values[i] = SpilledCheckpoint(store.write(value), summaryOf(value))
+        }
+    }
+
+    /**
+     * Keeps the checkpoint at time [t] on the heap from now on, null if none has to be. If it was spilled, accessing it
+     * returns the same copy each time and that copy is written back to the store once another time is kept resident.
+     */
+    fun keepResident(t: Int?) {
+        if (t == residentTime) {
+            return
+        }
+        writeBackResident()
+        residentTime = t
+    }
+
+    private fun writeBackResident() {
+        val copy = residentCopy ?: return
+        residentCopy = null
+        val i = search(residentTime!!)
+        if (i >= 0 && values[i] is SpilledCheckpoint) {
+            values[i] = SpilledCheckpoint(store!!.write(copy), summaryOf(copy))
+        }
+    }
+
+    /**
+     * Drops everything from time [newSize] on.
+     */
+    fun truncate(newSize: Int) {
+        if (newSize >= length) {
+            return
+        }
+        checkIndex(newSize, length)
+        var i = search(newSize)
+        if (i < 0) i = -i - 1
+        values.fill(null, i, count)
+        count = i
+        length = newSize
+        spilled = minOf(spilled, count)
+        if ((residentTime ?: -1) >= newSize) residentCopy = null
+    }
+
+    /**
+     * Removes the real checkpoints for which [keep] returns false in a single pass, the instructions they were taken at
+     * stay part of the timeline.
+     */
+    fun retainCheckpoints(keep: (Int, Checkpoint) -> Boolean) {
+        var kept = 0
+        var keptSpilled = 0
+        for (i in 0 ..< count) {
+            if (keep(times[i], summary(values[i]))) {
+                times[kept] = times[i]
+                values[kept] = values[i]
+                kept++
+                if (i < spilled) keptSpilled++
+            }
+        }
+        values.fill(null, kept, count)
+        count = kept
+        spilled = keptSpilled
+        if (residentCopy != null && search(residentTime!!) < 0) residentCopy = null
+    }
+
+    /**
+     * Returns the last real checkpoint at or before [t] together with its time.
+     */
+    fun nearestAtOrBefore(t: Int): IndexedValue<Checkpoint>? {
+        val i = entryAtOrBefore(t)
+        return if (i >= 0) IndexedValue(times[i], resolve(i)) else null
+    }
+
+    /**
+     * Returns the first real checkpoint after [t] together with its time.
+     */
+    fun nearestAfter(t: Int): IndexedValue<Checkpoint>? {
+        val i = entryAtOrBefore(t) + 1
+        return if (i < count) IndexedValue(times[i], resolve(i)) else null
+    }
+
+    /**
+     * The real checkpoints with their times, without visiting the instructions in between.
+     */
+    fun indexedCheckpoints(): Sequence<IndexedValue<Checkpoint>> {
+        return (0 ..< count).asSequence().map { IndexedValue(times[it], resolve(it)) }
+    }
+
+    /**
+     * Like [indexedCheckpoints], but checkpoints that were spilled to the store are not read back. For those only the
+     * program counter of the snapshot is available.
+     */
+    fun summaries(): Sequence<IndexedValue<Checkpoint>> {
+        return (0 ..< count).asSequence().map { IndexedValue(times[it], summary(values[it])) }
+    }
+
+    private fun resolve(i: Int): Checkpoint {
+        val value = values[i]
+        if (value !is SpilledCheckpoint) {
+            return value as Checkpoint
+        }
+        if (times[i] != residentTime) {
+            return store!!.read(value.handle)
+        }
+        return residentCopy ?: store!!.read(value.handle).also { residentCopy = it }
+    }
+
+    private fun summary(value: Any?): Checkpoint {
+        return when (value) {
+            is SpilledCheckpoint -> value.summary
+            else -> value as Checkpoint
+        }
+    }
+
+    private fun summaryOf(checkpoint: Checkpoint): Checkpoint {
+        val snapshot = WOODDumpResponse(checkpoint.snapshot.pc, null, null, null, null, null, null, null, null, null, null, null, null, null)
+        return Checkpoint(checkpoint.instructions_executed, checkpoint.fidx_called, checkpoint.args, snapshot)
+    }
+
+    private fun entryAtOrBefore(t: Int): Int {
+        val i = search(t)
+        return if (i >= 0) i else -i - 2
+    }
+
+    /**
+     * Binary search for [t] in the times of the real checkpoints, returns the position if found or
+     * (-insertion point - 1) if not, like [java.util.Arrays.binarySearch].
+     */
+    private fun search(t: Int): Int {
+        // Appending and looking at the current state are the common cases.
+        if (count > 0 && times[count - 1] < t) {
+            return -count - 1
+        }
+        return times.binarySearch(t, 0, count)
+    }
+
+    private fun insertEntry(i: Int, t: Int, checkpoint: Checkpoint) {
+        if (count == times.size) {
+            times = times.copyOf(count * 2)
+            values = values.copyOf(count * 2)
+        }
+        System.arraycopy(times, i, times, i + 1, count - i)
+        System.arraycopy(values, i, values, i + 1, count - i)
+        times[i] = t
+        values[i] = checkpoint
+        count++
+        if (i < spilled) spilled++
+    }
+
+    private fun removeEntry(i: Int) {
+        if (times[i] == residentTime) residentCopy = null
+        System.arraycopy(times, i + 1, times, i, count - i - 1)
+        System.arraycopy(values, i + 1, values, i, count - i - 1)
+        count--
+        values[count] = null
+        if (i < spilled) spilled--
+    }
+
+    private fun checkIndex(index: Int, size: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index out of bounds for length $size")
+        }
+    }
+}
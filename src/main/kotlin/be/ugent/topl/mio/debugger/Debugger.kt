@@ -1,115 +1,211 @@
 package be.ugent.topl.mio.debugger
 
 import WasmInfo
+import be.ugent.topl.mio.Json
+import be.ugent.topl.mio.Trace
 import be.ugent.topl.mio.connections.Connection
+import be.ugent.topl.mio.woodstate.BinaryStateMessages
 import be.ugent.topl.mio.woodstate.Checkpoint
 import be.ugent.topl.mio.woodstate.HexaEncoder
+import be.ugent.topl.mio.woodstate.InterruptTypes
+import be.ugent.topl.mio.woodstate.Memory
 import be.ugent.topl.mio.woodstate.WOODDumpResponse
 import be.ugent.topl.mio.woodstate.WOODState
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import java.io.Closeable
 import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.concurrent.thread
+import kotlin.math.abs
+import kotlin.math.ceil
+import kotlin.math.sqrt
 import kotlin.streams.toList
 
 open class Debugger(private val connection: Connection, start: Boolean = true, private val onHitBreakpoint: (Int) -> Unit = {}) : Closeable, AutoCloseable {
-    private val requestQueue: Queue<Int> = LinkedList()
     var printListener: ((String) -> Unit)? = null
-    private val messageQueue = MessageQueue {
-        for (msg in it) {
-            if (msg.startsWith("EMU: ")) {
-                this.printListener?.invoke(msg.substring(5))
-            }
+    val checkpoints = CheckpointTimeline()
+    var retentionPolicy: RetentionPolicy = RetentionPolicy.KeepAll()
+    /**
+     * Checkpoints at these program counters are never evicted, they are restored when stepping back (see [stepBack]).
+     */
+    var pinnedPcs: Set<Int> = emptySet()
+    /**
+     * Chooses the checkpoint to restore when stepping back, its cost model is updated with every restore and replay.
+     */
+    val planner = StepBackPlanner()
+    var snapshotPolicy: SnapshotPolicy = SnapshotPolicy.None()
+        private set
+    // The time the VM is at after seek moved it back in the history, null when it is at the end of the history.
+    @Volatile private var cursor: Int? = null
+        set(value) {
+            field = value
+            // The current state is changed in place (e.g. its breakpoints), so it can't be a copy from the store.
+            checkpoints.keepResident(value)
+        }
+    // When the last checkpoint arrived, 0 after a command was sent since the time in between isn't only execution.
+    @Volatile private var lastCheckpointNanos = 0L
+    private var checkpointStore: CheckpointStore? = null
+    // Set when the VM accepts snapshots as binary frames, see negotiateBinarySnapshots.
+    private var binaryFrameSize: Int? = null
+    /**
+     * The amount of snapshot messages that can be sent before the first one is acknowledged, 1 waits for every message.
+     */
+    var uploadWindow = 1
+        set(value) {
+            require(value >= 1) { "The upload window should be at least 1" }
+            field = value
         }
+    var uploadTimeoutMillis = 5000L
+    /**
+     * When restoring a snapshot, only send the memory that differs from the memory the VM is known to have. This needs
+     * a VM that keeps its memory when loading a snapshot with the same amount of pages.
+     */
+    var memoryDiffRestore = false
+    // The memory of the VM, known after stepping back or restoring a snapshot until the next command is sent.
+    private var vmMemory: Memory? = null
+    /**
+     * The module the VM runs, if known. [reloadModule] compares a new version of the module with it to only send the
+     * functions that changed.
+     */
+    var loadedModule: ByteArray? = null
+    /**
+     * Extra VMs that search the history in parallel, [stepBackUntil] and [reverseContinue] use them when set. They are
+     * closed together with the debugger.
+     */
+    var replayPool: ReplayPool? = null
+    // How many batch calls the current thread is in, commands are only flushed right away outside of batches.
+    private val batchDepth = ThreadLocal.withInitial { 0 }
+    // Writes to the connection from different threads (e.g. a breakpoint callback) don't interleave.
+    private val writeLock = Any()
+    // A new checkpoint interval chosen by SnapshotPolicy.Adaptive, sent before the next command.
+    private val pendingRetune = AtomicReference<SnapshotPolicy.Adaptive?>()
+    private val stateListeners = mutableListOf<(WOODDumpResponse) -> Unit>()
+    private var commandBreakpoint = false
+    private val messageQueue = MessageQueue().apply {
+        addHandler(::handlePrint)
+        addHandler("CHECKPOINT ", ::handleCheckpoint)
+        addHandler(::handleBreakpointHit)
     }
     private val readThread  = thread(start) {
+        val readBuffer = ByteArray(64 * 1024)
         while (!Thread.currentThread().isInterrupted) {
-            while (connection.bytesAvailable() == 0) {
-                try {
-                    Thread.sleep(10)
-                } catch (_: InterruptedException) {
-                    Thread.currentThread().interrupt()
-                    break
-                }
+            // Block until the connection has data for us instead of polling it.
+            val count = try {
+                connection.readBlocking(readBuffer)
+            } catch (_: InterruptedException) {
+                break
+            } catch (e: IOException) {
+                if (Thread.currentThread().isInterrupted) break
+                throw e
             }
+            if (count < 0) {
+                break
+            }
+            if (count == 0) {
+                continue
+            }
+            // Checkpoints and breakpoint notifications are handled by the handlers of the message queue as the lines
+            // come in, so breakpoints are always handled after the checkpoints that precede them.
+            messageQueue.push(readBuffer, count)
+        }
+    }
+
+    private fun handlePrint(message: String): Boolean {
+        if (!message.startsWith("EMU: ")) {
+            return false
+        }
+        this.printListener?.invoke(message.substring(5))
+        return true
+    }
 
-            val readBuffer = ByteArray(connection.bytesAvailable())
-            connection.read(readBuffer)
-            messageQueue.push(String(readBuffer), true)
+    private fun handleCheckpoint(payload: ByteArray, offset: Int, length: Int) {
+        try {
+            // Parse straight from the read buffer, the payload is only turned into a string when something goes wrong.
+            val checkpoint = Json.checkpointReader.readValue<Checkpoint>(payload, offset, length)
+            //println(checkpoint)
 
-            while (true) {
-                val checkpointMessage = messageQueue.search {
-                    val match = Regex("CHECKPOINT (.*)").matchEntire(it.trimEnd('\r')) ?: throw Exception()
-                    return@search match
-                }
-                if (checkpointMessage == null)
-                    break;
-
-                val payloadStr = checkpointMessage.second.groups[1]!!.value
-
-                try {
-                    val checkpoint = ObjectMapper().registerKotlinModule().readValue(payloadStr, Checkpoint::class.java)
-                    //println(checkpoint)
-
-                    if (checkpoint.instructions_executed == 0 && checkpoints.size > 0) {
-                        if (checkpoint.snapshot.pc != checkpoints.last()!!.snapshot.pc) {
-                            throw RuntimeException("Received a checkpoint with a different pc but with 0 executed instructions since the last checkpoint!")
-                        }
-                        System.err.println("WARNING: Received a checkpoint that we already have!")
-                        continue
-                    }
-
-                    for (i in 0..< checkpoint.instructions_executed - 1) {
-                        checkpoints.add(null)
-                    }
-                    /*if (checkpoints.isNotEmpty() && checkpoints.last()?.pc == checkpoint.snapshot.pc && checkpoint.instructions_executed == 0) {
-                        println("Duplicate checkpoint!")
-                        throw Exception("Error")
-                        continue
-                    }*/
-                    checkpoints.add(checkpoint)
-
-                    checkpointsUpdated()
-                } catch(e: Exception) {
-                    println("ERROR!")
-                    println(payloadStr)
-                    println(e)
-                    println("")
-                    checkpoints.clear()
+            if (checkpoint.instructions_executed == 0 && checkpoints.size > 0) {
+                if (checkpoint.snapshot.pc != currentCheckpoint()?.snapshot?.pc) {
+                    throw RuntimeException("Received a checkpoint with a different pc but with 0 executed instructions since the last checkpoint!")
                 }
+                System.err.println("WARNING: Received a checkpoint that we already have!")
+                return
             }
-            messageQueue.pushDone()
 
-            // Handle breakpoints after receiving checkpoints so we have the correct state.
-            if (!commandBreakpoint) {
-                // Check for "AT address!"
-                val searchAtResult = messageQueue.search {
-                    val match = Regex("AT ([0-9]+)!").matchEntire(it.trimEnd('\r')) ?: throw Exception()
-                    return@search match.groups[1]!!.value.toInt()
+            val end = checkpoints.size - 1
+            val cursor = cursor
+            val t = (cursor ?: end) + checkpoint.instructions_executed
+            // Only keep the parts of memory that changed since the previous checkpoint.
+            val previous = checkpoints.nearestAtOrBefore(minOf(t, end))?.value
+            if (cursor != null && t <= end) {
+                // Replaying a part of the history, only the checkpoints that were not taken the first time are added.
+                if (checkpoints[t] == null) {
+                    checkpoint.snapshot.memory?.shareBlocksWith(previous?.snapshot?.memory)
+                    checkpoints[t] = checkpoint
                 }
-                if (searchAtResult != null) {
-                    /*
-                     * Run the callback in a separate thread, this allows the callback function to make use of debugger
-                     * functions that wait until a message is received. If we don't use a separate thread, the execution
-                     * of this function would block the current thread, but this thread is responsible for reading
-                     * incoming messages, so the request would never be completed.
-                     */
-                    thread {
-                        onHitBreakpoint(searchAtResult.second)
-                    }
+                this.cursor = if (t < end) t else null
+            } else {
+                checkpoint.snapshot.memory?.shareBlocksWith(previous?.snapshot?.memory)
+                checkpoints.append(checkpoint, t - end)
+                this.cursor = null
+                retentionPolicy.enforce(checkpoints, ::isPinned)
+            }
+            (snapshotPolicy as? SnapshotPolicy.Adaptive)?.let { policy ->
+                val now = System.nanoTime()
+                val millis = if (lastCheckpointNanos != 0L) (now - lastCheckpointNanos) / 1e6 else null
+                lastCheckpointNanos = now
+                policy.checkpointReceived(checkpoint.instructions_executed, length, millis)?.let {
+                    // This is the read thread, it can't wait for the acknowledgement. The next command sends it.
+                    pendingRetune.set(policy)
                 }
             }
+
+            checkpointsUpdated()
+        } catch(e: Exception) {
+            println("ERROR!")
+            println(String(payload, offset, length))
+            println(e)
+            println("")
+            checkpoints.clear()
         }
     }
-    val checkpoints = mutableListOf<Checkpoint?>()
-    private val stateListeners = mutableListOf<(WOODDumpResponse) -> Unit>()
-    private var commandBreakpoint = false
+
+    /**
+     * Checkpoints that can't be reproduced by executing from an older checkpoint: the current state and the
+     * checkpoints taken at primitive calls.
+     */
+    protected open fun isPinned(t: Int, checkpoint: Checkpoint): Boolean {
+        return t == time || t == checkpoints.size - 1 || checkpoint.fidx_called != null || checkpoint.snapshot.pc in pinnedPcs
+    }
+
+    private fun handleBreakpointHit(message: String): Boolean {
+        // While a command is running that stops at a breakpoint itself, the command waits for the "AT address!" message.
+        if (commandBreakpoint || !message.startsWith("AT ")) {
+            return false
+        }
+        val address = breakpointRegex.matchEntire(message)?.groups?.get(1)?.value?.toInt() ?: return false
+        /*
+         * Run the callback in a separate thread, this allows the callback function to make use of debugger
+         * functions that wait until a message is received. If we don't use a separate thread, the execution
+         * of this function would block the current thread, but this thread is responsible for reading
+         * incoming messages, so the request would never be completed.
+         */
+        thread {
+            onHitBreakpoint(address)
+        }
+        return true
+    }
 
     init {
         Runtime.getRuntime().addShutdownHook(thread(false) {
-            println("Closing debugger connection...")
+            Trace.info { "Closing debugger connection..." }
             close()
         })
     }
@@ -120,8 +216,22 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
 
     override fun close() {
         readThread.interrupt()
-        readThread.join()
+        // Closing the connection unblocks a read thread that is waiting for data.
         connection.close()
+        readThread.join()
+        messageQueue.cancelAll("The debugger was closed")
+        replayPool?.close()
+        checkpointStore?.close()
+    }
+
+    /**
+     * Keeps only the [residentLimit] most recent checkpoints on the heap, older checkpoints are written to a store in
+     * [directory] that is removed when the debugger is closed.
+     */
+    fun spillCheckpoints(directory: File, residentLimit: Int) {
+        val store = CheckpointStore(directory)
+        checkpointStore = store
+        checkpoints.spillTo(store, residentLimit)
     }
 
     fun repl() {
@@ -166,64 +276,132 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
 
             method.invoke(this, *argList.toTypedArray())
         } catch (_: NoSuchMethodException) {
-            println("Sending \"$str\"")
+            Trace.debug { "Sending \"$str\"" }
             val write = "${str}\n".toByteArray()
-            connection.write(write)
+            write(write)
+            flush()
         }
         return false
     }
 
-    private fun send(code: Int, payload: String = "") {
+    private fun write(buf: ByteArray) {
+        synchronized(writeLock) {
+            connection.write(buf)
+        }
+    }
+
+    private fun write(buf: ByteArray, offset: Int, length: Int) {
+        synchronized(writeLock) {
+            connection.write(buf, offset, length)
+        }
+    }
+
+    private fun flush() {
+        synchronized(writeLock) {
+            connection.flush()
+        }
+    }
+
+    private fun send(code: Int, payload: String = "", flush: Boolean = batchDepth.get() == 0) {
+        applyPendingRetune()
+        vmMemory = null
+        lastCheckpointNanos = 0L
         val str = String.format("%02d$payload\n", code)
-        requestQueue.add(code)
-        print("Sending $str")
+        Trace.debug { "Sending ${str.trimEnd()}" }
         val write = str.toByteArray()
-        connection.write(write)
+        write(write)
+        if (flush) {
+            flush()
+        }
     }
 
     private fun sendRaw(message: String) {
-        print("Sending $message")
+        applyPendingRetune()
+        vmMemory = null
+        lastCheckpointNanos = 0L
+        Trace.debug { "Sending ${message.trimEnd()}" }
         val write = message.toByteArray()
-        connection.write(write)
+        write(write)
+        if (batchDepth.get() == 0) {
+            flush()
+        }
+    }
+
+    /**
+     * Sends interrupt [code] and returns a future for the response accepted by [parser]. The response is registered
+     * before sending, so the caller can send more requests before waiting for the result. Requests are always flushed,
+     * together with the commands that were batched before them.
+     */
+    private fun <T> request(code: Int, payload: String = "", parser: (String) -> T?): CompletableFuture<T> {
+        val response = messageQueue.expect(code, parser)
+        send(code, payload, flush = true)
+        return response
+    }
+
+    /**
+     * Runs [f] while holding back the commands it sends that don't wait for a response, they are transmitted together
+     * with the next request or when [f] returns. Batches can be nested.
+     */
+    fun <T> batch(f: () -> T): T {
+        batchDepth.set(batchDepth.get() + 1)
+        try {
+            return f()
+        } finally {
+            batchDepth.set(batchDepth.get() - 1)
+            if (batchDepth.get() == 0) {
+                flush()
+            }
+        }
+    }
+
+    private fun request(code: Int, payload: String, expectedResponse: String): CompletableFuture<String> {
+        return request(code, payload) { if (it == expectedResponse) it else null }
     }
 
     open fun run() {
+        branchFromCursor()
         send(1)
     }
     fun halt() = send(2)
     fun pause() {
-        send(3)
-        messageQueue.waitForResponse("PAUSE!")
+        request(3, "", "PAUSE!").join()
     }
     open fun stepInto() {
-        //snapshotStack.add(currentSnapshot!!)
-        send(4)
-        messageQueue.waitForResponse("STEP!")
-        //currentSnapshot = snapshotFull().second
+        branchFromCursor()
+        request(4, "", "STEP!").join()
     }
     open fun stepOver() {
+        branchFromCursor()
         commandBreakpoint = true
-        send(5)
-        messageQueue.waitForResponse {
-            if (it != "STEP!" && it.matches(Regex("AT [0-9]+!")))
-                throw Exception()
-        }
+        request(5) {
+            if (it == "STEP!" || breakpointRegex.matches(it)) it else null
+        }.join()
         commandBreakpoint = false
     }
     fun stepUntil(cond: (WOODDumpResponse) -> Boolean) {
         stepInto()
-        while (!cond(checkpoints.last()!!.snapshot)) {
+        while (!cond(currentCheckpoint()!!.snapshot)) {
             stepInto()
         }
     }
 
     private fun canStepBack(): Boolean {
-        return checkpoints.size > 1
+        return time > 0
     }
 
     fun stepBackUntil(binaryInfo: WasmInfo, cond: (WOODDumpResponse) -> Boolean) {
+        replayPool?.let { pool ->
+            // The workers replay the history, the VM only moves to the result.
+            val t = if (time > 0) pool.findLast(to = time - 1) { _, after -> cond(after) } else null
+            if (t == null) {
+                System.err.println("WARNING: Can't go back further!")
+                return
+            }
+            seek(t)
+            return
+        }
         stepBack(1, binaryInfo) {}
-        while (!cond(checkpoints.last()!!.snapshot)) {
+        while (!cond(currentCheckpoint()!!.snapshot)) {
             if (!canStepBack()) {
                 System.err.println("WARNING: Can't go back further!")
                 return
@@ -233,30 +411,33 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
     }
 
     fun step(n: Int) {
+        branchFromCursor()
         for (i in 0 ..< n) {
-            send(4)
-            messageQueue.waitForResponse("STEP!")
+            request(4, "", "STEP!").join()
         }
     }
 
     fun printCheckpoints(binaryInfo: WasmInfo? = null) {
         println("Checkpoints:")
-        for (checkpoint in checkpoints) {
-            if (checkpoint == null) {
-                println("|")
-            }
-            else {
-                print("* pc = ${checkpoint.snapshot.pc}")
-                if (binaryInfo != null) {
-                    if (checkpoint.snapshot.pc in binaryInfo.primitive_calls) {
-                        print(" CALL Primitive")
-                    }
-                    if (checkpoint.snapshot.pc in binaryInfo.after_primitive_calls) {
-                        print(" After primitive, should restore")
-                    }
+        var previous = -1
+        for ((t, checkpoint) in checkpoints.indexedCheckpoints()) {
+            if (t - previous > 1) {
+                println("| (${t - previous - 1} instructions)")
+            }
+            previous = t
+            print("* pc = ${checkpoint.snapshot.pc}")
+            if (binaryInfo != null) {
+                if (checkpoint.snapshot.pc in binaryInfo.primitive_calls) {
+                    print(" CALL Primitive")
+                }
+                if (checkpoint.snapshot.pc in binaryInfo.after_primitive_calls) {
+                    print(" After primitive, should restore")
                 }
-                println()
             }
+            println()
+        }
+        if (checkpoints.size - previous > 1) {
+            println("| (${checkpoints.size - previous - 1} instructions)")
         }
         println("count = ${checkpoints.size}")
     }
@@ -265,45 +446,44 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
         if (n == 0) {
             return
         }
+        branchFromCursor()
+        if (checkpoints.nearestAtOrBefore(checkpoints.size - 1 - n) == null) {
+            System.err.println("WARNING: Can't go back further, there is no checkpoint to restore!")
+            return
+        }
 
+        (snapshotPolicy as? SnapshotPolicy.Adaptive)?.steppedBack()
         val currentState = checkpoints.removeLast() // Remove current state, we don't need to restore this, we are already in this state.
+        vmMemory = currentState?.snapshot?.memory
         val nSnapshots = checkpoints.subList(checkpoints.size - n, checkpoints.size).toList()
         for (checkpoint in nSnapshots.reversed()) {
             if (checkpoint != null && (checkpoint.snapshot.pc in binaryInfo.after_primitive_calls || nSnapshots.first() == checkpoint)) {
             //if (snapshot != null) {
-                println("Snapshot to ${checkpoint.snapshot.pc}")
+                Trace.info { "Snapshot to ${checkpoint.snapshot.pc}" }
                 val s = checkpoint.snapshot
                 s.breakpoints = currentState?.snapshot?.breakpoints // The current state can be null if the data about this checkpoint was removed.
                 loadSnapshot(s)
             }
             stepDone()
         }
-        for (i in 0 ..< n - 1) {
-            checkpoints.removeLast()
-        }
+        checkpoints.truncate(checkpoints.size - (n - 1))
 
         // Restore the last snapshot and step forward
         // Find the last snapshot before the desired point, restore that snapshot and then step forward to the desired point.
         if (nSnapshots.first() == null) {
-            var stepForward = 0
-            for (checkpoint in checkpoints.reversed()) {
-                if (checkpoint != null) {
-                    println("Jumping to ${checkpoint.snapshot.pc}")
-                    val s = checkpoint.snapshot
-                    s.breakpoints = currentState?.snapshot?.breakpoints
-                    loadSnapshot(s)
-                    break
-                }
-                stepForward++
-            }
+            val plan = planner.plan(checkpoints, checkpoints.size - 1, ::isReplayBarrier, ::estimateUploadSize)!!
+            Trace.info { "Jumping to ${plan.restore.value.snapshot.pc} and replaying ${plan.replay} (estimated ${plan.cost.toInt()}ms)" }
+            val s = plan.restore.value.snapshot
+            s.breakpoints = currentState?.snapshot?.breakpoints
+            loadSnapshot(s)
             // Remove old null checkpoints
-            for (i in 0 ..< stepForward) {
-                checkpoints.removeLast()
-            }
+            checkpoints.truncate(plan.restore.index + 1)
             // Step forward to the desired point (which will also add back snapshots onto the snapshot stack)
             // We do this without breakpoints because we don't want these to interrupt the forward execution.
             withoutBreakpoints {
-                internalContinueFor(stepForward)
+                for (segment in plan.replay) {
+                    internalContinueFor(segment)
+                }
             }
         }
 
@@ -311,8 +491,182 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
         checkpointsUpdated()
     }
 
+    /**
+     * The time in [checkpoints] the VM is at. This is the end of the history, unless [seek] moved back.
+     */
+    val time: Int
+        get() = cursor ?: (checkpoints.size - 1)
+
+    /**
+     * The checkpoint of the state the VM is in, see [time].
+     */
+    fun currentCheckpoint(): Checkpoint? {
+        val t = time
+        return if (t >= 0) checkpoints[t] else null
+    }
+
+    /**
+     * Moves the VM to time [t] in the history, backwards or forwards, without removing anything from the history. The
+     * cheapest checkpoint at or before [t] is restored and the instructions after it are replayed (see [planner]), when
+     * going forwards replaying from the current state is used if that is cheaper. Replay leaves checkpoints behind, so
+     * seeking near the same time again is faster.
+     *
+     * Commands that execute instructions from a point in the past drop the history after it, see [branchFromCursor].
+     */
+    open fun seek(t: Int) {
+        require(t in 0 ..< checkpoints.size) { "Time $t is not part of the history (0 ..< ${checkpoints.size})" }
+        val now = time
+        if (t == now) {
+            return
+        }
+        val plan = planner.plan(checkpoints, t, ::isReplayBarrier, ::estimateUploadSize)
+        val current = currentCheckpoint()
+        val breakpoints = current?.snapshot?.breakpoints ?: emptyList()
+        val fromCurrent = if (t > now && current != null && canReplay(now, t)) planner.segments(t - now) else null
+        val replay = if (fromCurrent != null && (plan == null || fromCurrent.sumOf { planner.replayCost.estimate(it.toLong()) } <= plan.cost)) {
+            Trace.info { "Seeking to $t by replaying $fromCurrent" }
+            fromCurrent
+        } else if (plan != null) {
+            Trace.info { "Seeking to $t by restoring ${plan.restore.index} and replaying ${plan.replay} (estimated ${plan.cost.toInt()}ms)" }
+            if (t < now) {
+                (snapshotPolicy as? SnapshotPolicy.Adaptive)?.steppedBack()
+            }
+            vmMemory = current?.snapshot?.memory
+            val s = plan.restore.value.snapshot
+            s.breakpoints = breakpoints
+            loadSnapshot(s)
+            cursor = plan.restore.index
+            plan.replay
+        } else {
+            System.err.println("WARNING: Can't seek to $t, there is no checkpoint to restore!")
+            return
+        }
+        if (replay.isNotEmpty()) {
+            withoutBreakpoints {
+                for (segment in replay) {
+                    internalContinueFor(segment)
+                }
+            }
+        }
+        cursor = if (t < checkpoints.size - 1) t else null
+        currentCheckpoint()?.snapshot?.breakpoints = breakpoints
+        checkpointsUpdated()
+    }
+
+    /**
+     * Moves back to the last time before now at which a breakpoint was hit and returns that time, or null if no
+     * breakpoint was hit since the oldest checkpoint that can be replayed (the VM then stays where it was).
+     *
+     * The history is searched backwards one checkpoint interval at a time. A checkpoint at a breakpoint is a hit
+     * without executing anything, the instructions in between are replayed once with the breakpoints armed, every hit
+     * leaves a checkpoint behind. The VM then seeks to the last hit, which costs a replay per interval that is searched
+     * instead of a restore and replay per instruction like with [stepBackUntil]. With a [replayPool] the workers search
+     * the intervals in parallel instead.
+     */
+    fun reverseContinue(): Int? {
+        val now = time
+        val breakpoints = currentCheckpoint()?.snapshot?.breakpoints ?: emptyList()
+        if (breakpoints.isEmpty() || now <= 0) {
+            return null
+        }
+        replayPool?.let { pool ->
+            val hit = pool.findLast(to = now - 1) { _, after -> after.pc in breakpoints } ?: return null
+            seek(hit)
+            return hit
+        }
+        var end = now
+        var start = checkpoints.nearestAtOrBefore(now - 1)
+        while (start != null) {
+            val endCheckpoint = checkpoints[end]
+            if (end < now && endCheckpoint != null && endCheckpoint.snapshot.pc in breakpoints) {
+                seek(end)
+                return end
+            }
+            if (endCheckpoint != null && isReplayBarrier(endCheckpoint)) {
+                // The instructions before a primitive call can't be replayed, a breakpoint hit there is not found.
+                Trace.info { "Not searching for breakpoints before the primitive call at $end" }
+            } else if (end - start.index > 1) {
+                val hit = replayForBreakpoints(start, end, breakpoints).lastOrNull { it < now }
+                if (hit != null) {
+                    seek(hit)
+                    return hit
+                }
+            }
+            end = start.index
+            start = checkpoints.nearestAtOrBefore(end - 1)
+        }
+        // Nothing was hit, the end of the oldest interval is only checked in the loop.
+        if (end < now && checkpoints[end]?.snapshot?.pc in breakpoints) {
+            seek(end)
+            return end
+        }
+        if (time != now) {
+            seek(now)
+        }
+        return null
+    }
+
+    /**
+     * Restores [from] and executes up to time [to] with [breakpoints] armed, returns the times at which a breakpoint
+     * was hit. The VM takes a checkpoint when it stops at a breakpoint, so the time of a hit is the time of the VM.
+     */
+    private fun replayForBreakpoints(from: IndexedValue<Checkpoint>, to: Int, breakpoints: List<Int>): List<Int> {
+        Trace.debug { "Searching for breakpoints between ${from.index} and $to" }
+        vmMemory = currentCheckpoint()?.snapshot?.memory
+        val s = from.value.snapshot
+        s.breakpoints = breakpoints
+        loadSnapshot(s)
+        cursor = from.index
+        val hits = mutableListOf<Int>()
+        commandBreakpoint = true
+        try {
+            while (time < to) {
+                val before = time
+                val start = System.nanoTime()
+                val response = request(8, String.format("%08x", to - before)) {
+                    if (it == "DONE!" || breakpointRegex.matches(it)) it else null
+                }.join()
+                planner.replayCost.record((time - before).toLong(), (System.nanoTime() - start) / 1e6)
+                if (response == "DONE!") {
+                    break
+                }
+                if (time == before) {
+                    System.err.println("WARNING: No checkpoint was taken at the breakpoint, can't tell when it was hit!")
+                    break
+                }
+                hits.add(time)
+            }
+        } finally {
+            commandBreakpoint = false
+        }
+        return hits
+    }
+
+    // True if the instructions after from up to and including to can be executed again.
+    private fun canReplay(from: Int, to: Int): Boolean {
+        var checkpoint = checkpoints.nearestAtOrBefore(to)
+        while (checkpoint != null && checkpoint.index > from) {
+            if (isReplayBarrier(checkpoint.value)) {
+                return false
+            }
+            checkpoint = checkpoints.nearestAtOrBefore(checkpoint.index - 1)
+        }
+        return true
+    }
+
+    /**
+     * Executing instructions from a point in the past that [seek] moved to can take a different path than the history
+     * (primitives are called again), so the history after it is dropped first.
+     */
+    protected open fun branchFromCursor() {
+        val cursor = cursor ?: return
+        Trace.info { "Continuing from $cursor, dropping ${checkpoints.size - 1 - cursor} instructions of history" }
+        checkpoints.truncate(cursor + 1)
+        this.cursor = null
+    }
+
     open fun checkpointsUpdated() {
-        val currentState = checkpoints.last()
+        val currentState = currentCheckpoint()
         if (currentState == null) {
             return
         }
@@ -331,29 +685,53 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
     }
 
     fun addBreakpoint(address: Int) {
-        send(6, String.format("%08x", address))
-        messageQueue.waitForResponse("BP $address!")
+        request(6, String.format("%08x", address), "BP $address!").join()
 
-        val s = checkpoints.last()!!.snapshot
+        val s = currentCheckpoint()!!.snapshot
         s.breakpoints = s.breakpoints!!.toMutableList() + address
     }
-    fun enableBreakpoints(breakpoints: List<Int>) {
-        for (breakpoint in breakpoints) {
-            addBreakpoint(breakpoint)
-        }
+    fun enableBreakpoints(breakpoints: List<Int>) = addBreakpoints(breakpoints)
+
+    /**
+     * Adds all [addresses] as breakpoints. The requests are sent together and their acknowledgements are awaited at
+     * once, instead of a round trip per breakpoint.
+     */
+    fun addBreakpoints(addresses: Collection<Int>) = updateBreakpoints(addresses, emptyList())
+
+    /**
+     * Removes all [addresses] as breakpoints, see [addBreakpoints].
+     */
+    fun removeBreakpoints(addresses: Collection<Int>) = updateBreakpoints(emptyList(), addresses)
+
+    /**
+     * Makes [addresses] the breakpoints of the VM, only the breakpoints that change are sent.
+     */
+    fun setBreakpoints(addresses: Collection<Int>) {
+        val current = currentCheckpoint()!!.snapshot.breakpoints ?: emptyList()
+        updateBreakpoints(addresses.filter { it !in current }, current.filter { it !in addresses })
     }
-    fun removeBreakpoint(address: Int) {
-        send(7, String.format("%08x", address))
-        messageQueue.waitForResponse("BP $address!")
 
-        val s = checkpoints.last()!!.snapshot
-        s.breakpoints = s.breakpoints!!.toMutableList() - address
+    private fun updateBreakpoints(add: Collection<Int>, remove: Collection<Int>) {
+        if (add.isEmpty() && remove.isEmpty()) {
+            return
+        }
+        val requests = remove.map { 7 to it } + add.map { 6 to it }
+        val responses = requests.map { (code, address) ->
+            val response = messageQueue.expect(code) { if (it == "BP $address!") it else null }
+            send(code, String.format("%08x", address), flush = false)
+            response
+        }
+        flush()
+        CompletableFuture.allOf(*responses.toTypedArray()).join()
+
+        val s = currentCheckpoint()!!.snapshot
+        val current = (s.breakpoints ?: emptyList()) - remove.toSet()
+        s.breakpoints = current + add.filter { it !in current }.distinct()
     }
+
     fun disableAllBreakpoints(): List<Int> {
-        val breakpointsStart = checkpoints.last()!!.snapshot.breakpoints?: emptyList()
-        for (breakpoint in breakpointsStart) {
-            removeBreakpoint(breakpoint)
-        }
+        val breakpointsStart = currentCheckpoint()!!.snapshot.breakpoints?: emptyList()
+        removeBreakpoints(breakpointsStart)
         return breakpointsStart
     }
     fun withoutBreakpoints(f: () -> Unit) {
@@ -364,30 +742,28 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
     private fun internalContinueFor(n: Int) {
         //Thread.sleep(n * 1L)
         val startLen = checkpoints.size
-        send(8, String.format("%08x", n))
-        //messageQueue.waitForResponse("DONE!")
-        messageQueue.searchForResponse {
-            if (it.trimEnd('\r') != "DONE!") throw Exception()
-            it
-        }
+        val start = System.nanoTime()
+        // Checkpoints are handled as they arrive, so once "DONE!" is received all checkpoints are known.
+        request(8, String.format("%08x", n), "DONE!").join()
+        planner.replayCost.record(n.toLong(), (System.nanoTime() - start) / 1e6)
         /*while (checkpoints.size < startLen + n) {
             println("Wait a bit (${checkpoints.size}, ${startLen + n})")
             Thread.sleep(200)
         }*/
-        println("continueFor done!")
+        Trace.debug { "continueFor done!" }
+    }
+    open fun continueFor(n: Int) {
+        branchFromCursor()
+        internalContinueFor(n)
     }
-    open fun continueFor(n: Int) = internalContinueFor(n)
     fun inspect(vararg states: ExecutionState): WOODDumpResponse {
         var payload = String.format("%04x", states.size)
         for (state in states) {
             payload += String.format("%02x", state.ordinal + 1)
         }
-        send(9, payload)
-        return messageQueue.waitForResponse {
-            val objectMapper = ObjectMapper()
-            objectMapper.registerKotlinModule()
-            objectMapper.readValue(it, WOODDumpResponse::class.java)
-        }.second
+        return request(9, payload) {
+            WOODState.parseSnapshotOrNull(it)
+        }.join()
     }
     fun dumpVMState() = send(10)
     fun dumpLocals() = send(11)
@@ -395,35 +771,143 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
     fun reset() = send(13)
 
     fun snapshot(): String {
-        send(60)
-        return messageQueue.waitForResponse {
-            WOODState.fromLine(it)
-        }.first
+        return snapshotFull().first
     }
     fun snapshotFull(): Pair<String, WOODDumpResponse> {
-        send(60)
-        return messageQueue.waitForResponse {
-            WOODState.parseSnapshot(it)
-        }
+        return request(60) { line ->
+            WOODState.parseSnapshotOrNull(line)?.let { Pair(line, it) }
+        }.join()
     }
     fun loadSnapshot(payload: String) {
         loadSnapshot(WOODState.parseSnapshot(payload))
     }
     open fun loadSnapshot(snapshot: WOODDumpResponse) {
-        val woodState = WOODState(snapshot)
-        val messages = woodState.toBinary()
-        println(messages)
-        for (message in messages) {
-            sendRaw(message)
-            if (message != messages.last()) {
-                messageQueue.waitForResponse("ack!")
+        val start = System.nanoTime()
+        val uploadSize = estimateUploadSize(snapshot)
+        val woodState = WOODState(snapshot, if (memoryDiffRestore) vmMemory else null)
+        vmMemory = null
+        val frameSize = binaryFrameSize
+        if (frameSize != null) {
+            val frames = woodState.toFrames(frameSize)
+            Trace.debug { "Sending snapshot in ${frames.size} binary frames (${frames.sumOf { it.size }} bytes)" }
+            sendWindowed(66, frames)
+        } else {
+            val messages = woodState.toBinary()
+            Trace.trace { messages.toString() }
+            sendWindowed(62, messages.map { it.toByteArray() })
+        }
+        if (memoryDiffRestore) {
+            // The snapshot can still be modified by the caller.
+            vmMemory = snapshot.memory?.copy()
+        }
+        planner.uploadCost.record(uploadSize, (System.nanoTime() - start) / 1e6)
+    }
+
+    private fun estimateUploadSize(checkpoint: Checkpoint) = estimateUploadSize(checkpoint.snapshot)
+
+    /**
+     * A rough measure of the amount of data [loadSnapshot] sends for [snapshot]: the memory that has to be sent plus a
+     * fixed amount per value on the stack and frame on the callstack.
+     */
+    private fun estimateUploadSize(snapshot: WOODDumpResponse): Long {
+        val memory = snapshot.memory
+        val current = vmMemory
+        val memorySize = if (memory == null) {
+            0L
+        } else if (memoryDiffRestore && current != null) {
+            memory.changedRanges(current)?.sumOf { it.last - it.first + 1L } ?: memory.size().toLong()
+        } else {
+            memory.size().toLong()
+        }
+        return 256L + 16L * ((snapshot.stack?.size ?: 0) + (snapshot.callstack?.size ?: 0)) + memorySize
+    }
+
+    /**
+     * Replaying from an earlier checkpoint may not execute the instruction of this checkpoint again, because it can't
+     * be reproduced (a primitive call) or it was pinned.
+     */
+    fun isReplayBarrier(checkpoint: Checkpoint): Boolean {
+        return checkpoint.fidx_called != null || checkpoint.snapshot.pc in pinnedPcs
+    }
+
+    /**
+     * Sends the messages of a snapshot while keeping up to [uploadWindow] of them unacknowledged, so the upload isn't
+     * limited by the round-trip time of the connection. The VM answers every message with "ack!" and the last one with
+     * "done!" in the order they were sent, so the responses are matched to the messages by their position. If a message
+     * isn't acknowledged within [uploadTimeoutMillis] the whole snapshot is sent again, the first message makes the VM
+     * start over. The acknowledgements don't tell which message was lost, and a message that was only acknowledged late
+     * must not be applied twice.
+     */
+    private fun sendWindowed(code: Int, messages: List<ByteArray>) {
+        applyPendingRetune()
+        val outstanding = ArrayDeque<CompletableFuture<String>>()
+        var next = 0
+        var acknowledged = 0
+        var retries = 0
+        while (acknowledged < messages.size) {
+            while (next < messages.size && next - acknowledged < uploadWindow) {
+                val expectedResponse = if (next != messages.size - 1) "ack!" else "done!"
+                outstanding.addLast(messageQueue.expect(code) { if (it == expectedResponse) it else null })
+                write(messages[next])
+                next++
             }
-            else {
-                messageQueue.waitForResponse("done!")
+            // The messages of a window are transmitted together.
+            flush()
+            val response = outstanding.first()
+            try {
+                response.get(uploadTimeoutMillis, TimeUnit.MILLISECONDS)
+                outstanding.removeFirst()
+                acknowledged++
+                retries = 0
+            } catch (_: TimeoutException) {
+                if (++retries > MAX_UPLOAD_RETRIES) {
+                    throw IOException("The snapshot was not acknowledged after $MAX_UPLOAD_RETRIES attempts")
+                }
+                for (future in outstanding) {
+                    future.cancel(false)
+                }
+                drainUploadResponses(code, outstanding.size)
+                outstanding.clear()
+                System.err.println("WARNING: No acknowledgement for a message of the snapshot, sending it again")
+                acknowledged = 0
+                next = 0
             }
         }
     }
 
+    // Waits for the late responses to up to count messages, so they are not taken for responses to the messages that
+    // are sent again. Stops when one doesn't arrive within the timeout, the message was lost.
+    private fun drainUploadResponses(code: Int, count: Int) {
+        repeat(count) {
+            val stale = messageQueue.expect(code) { if (it == "ack!" || it == "done!") it else null }
+            try {
+                stale.get(uploadTimeoutMillis, TimeUnit.MILLISECONDS)
+            } catch (_: TimeoutException) {
+                stale.cancel(false)
+                return
+            }
+        }
+    }
+
+    /**
+     * Asks the VM if it accepts snapshots as binary frames (see [be.ugent.topl.mio.woodstate.BinaryStateMessages])
+     * instead of hexadecimal messages, which halves the amount of data that has to be sent. A VM that supports it
+     * answers with "BINARY <max frame size>!". Older VMs don't answer, after [timeoutMillis] the hexadecimal messages
+     * are used.
+     */
+    fun negotiateBinarySnapshots(timeoutMillis: Long = 500): Boolean {
+        val response = messageQueue.expect(66) { binaryRegex.matchEntire(it)?.groupValues?.get(1)?.toInt() }
+        send(66)
+        binaryFrameSize = try {
+            response.get(timeoutMillis, TimeUnit.MILLISECONDS)
+        } catch (_: TimeoutException) {
+            response.cancel(false)
+            null
+        }
+        Trace.info { "Binary snapshot transfer ${if (binaryFrameSize != null) "enabled (frames of $binaryFrameSize bytes)" else "not supported"}" }
+        return binaryFrameSize != null
+    }
+
     open fun addPrimitiveOverride(primName: String, arg: Int, returnValue: Int) {
         val primNameSerialised = primName.chars().toList().joinToString("") { c: Int -> String.format("%02x", c) } + "00"
         val payload = primNameSerialised + String.format("%08x", arg) + String.format("%08x", returnValue)
@@ -436,10 +920,99 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
         send(81, payload)
     }
 
-    fun updateModule(wasmFilename: String) {
+    /**
+     * Uploads the module in [wasmFilename] to the VM. The file is mapped in memory and sent in chunks, as binary frames
+     * if the VM accepts them (see [negotiateBinarySnapshots]) and hexadecimal otherwise. [progress] is called with the
+     * amount of bytes of the module that were sent after every chunk.
+     */
+    fun updateModule(wasmFilename: String, progress: (sent: Long, total: Long) -> Unit = { _, _ -> }) {
+        FileChannel.open(File(wasmFilename).toPath(), StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            if (size > Int.MAX_VALUE) {
+                throw IOException("The module is too large to upload ($size bytes)")
+            }
+            val module = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+            val response = messageQueue.expect(22) { if (it == "CHANGE Module!") it else null }
+            vmMemory = null
+            val frameSize = binaryFrameSize
+            if (frameSize != null) {
+                sendModuleFrames(module, BinaryStateMessages.maxPayloadSize(frameSize), progress)
+            } else {
+                sendModuleHex(module, progress)
+            }
+            response.join()
+            loadedModule = ByteArray(size.toInt()).also { module.get(0, it) }
+        }
+    }
+
+    /**
+     * Uploads a new version of the module in [wasmFilename]. If it only differs from [loadedModule] in its function
+     * bodies, only the changed functions are sent, otherwise the complete module is uploaded with [updateModule].
+     */
+    fun reloadModule(wasmFilename: String, progress: (sent: Long, total: Long) -> Unit = { _, _ -> }) {
         val bytes = File(wasmFilename).readBytes()
-        sendRaw("22${HexaEncoder.convertToLEB128(bytes.size)}" + HexFormat.of().formatHex(bytes) + "\n")
-        messageQueue.waitForResponse("CHANGE Module!")
+        val changed = loadedModule?.let { WasmModule.changedFunctions(it, bytes) }
+        if (changed == null) {
+            Trace.info { "Uploading the complete module" }
+            updateModule(wasmFilename, progress)
+            return
+        }
+        Trace.info { "Updating ${changed.size} function(s): ${changed.map { it.fidx }}" }
+        val total = changed.sumOf { it.size.toLong() }
+        var sent = 0L
+        batch {
+            for (function in changed) {
+                updateFunction(function.fidx, function.toByteArray())
+                sent += function.size
+                progress(sent, total)
+            }
+        }
+        loadedModule = bytes
+    }
+
+    /**
+     * Replaces the body (locals and code, as in the code section) of function [fidx].
+     */
+    fun updateFunction(fidx: Int, body: ByteArray) {
+        val message = StringBuilder(body.size * 2 + 16).append(InterruptTypes.interruptUPDATEFun)
+        HexaEncoder.appendLEB128(message, fidx)
+        HexaEncoder.appendLEB128(message, body.size)
+        HexaEncoder.appendBytes(message, body).append('\n')
+        sendRaw(message.toString())
+    }
+
+    private fun sendModuleHex(module: ByteBuffer, progress: (Long, Long) -> Unit) {
+        val size = module.remaining()
+        val header = HexaEncoder.appendLEB128(StringBuilder("22"), size).toString()
+        Trace.debug { "Sending $header followed by a module of $size bytes" }
+        write(header.toByteArray())
+        val chunk = ByteArray(MODULE_CHUNK_SIZE * 2 + 1)
+        while (module.hasRemaining()) {
+            var length = HexaEncoder.encodeHex(module, minOf(MODULE_CHUNK_SIZE, module.remaining()), chunk)
+            if (!module.hasRemaining()) {
+                chunk[length++] = '\n'.code.toByte()
+            }
+            write(chunk, 0, length)
+            flush()
+            progress(module.position().toLong(), size.toLong())
+        }
+        if (size == 0) {
+            write("\n".toByteArray())
+            flush()
+        }
+    }
+
+    private fun sendModuleFrames(module: ByteBuffer, maxPayloadSize: Int, progress: (Long, Long) -> Unit) {
+        val size = module.remaining()
+        Trace.debug { "Sending a module of $size bytes in binary frames" }
+        do {
+            val length = minOf(maxPayloadSize, module.remaining())
+            val payload = module.slice(module.position(), length)
+            module.position(module.position() + length)
+            write(BinaryStateMessages.frame(BinaryStateMessages.KIND_UPDATE_MODULE, payload, !module.hasRemaining()))
+            flush()
+            progress(module.position().toLong(), size.toLong())
+        } while (module.hasRemaining())
     }
 
     sealed class SnapshotPolicy(private val code: Int) {
@@ -458,13 +1031,126 @@ open class Debugger(private val connection: Connection, start: Boolean = true, p
                 return super.serialize() + HexaEncoder.serializeUInt32BE(interval)
             }
         }
+
+        /**
+         * Checkpointing with an interval that is tuned while the program runs. The time between checkpoints is
+         * measured as a fixed cost per checkpoint (sending and storing it, which grows with its size) plus a cost per
+         * instruction. The interval is the one that minimises the checkpoint overhead plus the expected replay when
+         * stepping back, given how often the user steps back, but never so small that checkpointing takes more than
+         * [targetOverhead] of the forward execution time. Like with [Checkpointing], the VM always checkpoints around
+         * primitive calls.
+         */
+        class Adaptive(
+            val targetOverhead: Double = 0.1,
+            private val minInterval: Int = 1,
+            private val maxInterval: Int = 1000,
+            initialInterval: Int = 20
+        ) : SnapshotPolicy(2) {
+            var interval = initialInterval
+                private set
+            // Milliseconds between two checkpoints, for the amount of instructions executed in between.
+            val forwardCost = StepBackPlanner.CostModel(1.0, 0.01)
+            private var instructions = 0.0
+            private var stepBacks = 0.0
+            private var checkpointBytes = 0.0
+            private var samples = 0
+
+            override fun serialize(): String {
+                return super.serialize() + HexaEncoder.serializeUInt32BE(interval)
+            }
+
+            @Synchronized
+            fun steppedBack() {
+                stepBacks++
+            }
+
+            /**
+             * Records a checkpoint of [bytes] that came [instructionsExecuted] instructions and [millis] milliseconds
+             * (if known) after the previous one. Returns the new interval if it should be changed.
+             */
+            @Synchronized
+            fun checkpointReceived(instructionsExecuted: Int, bytes: Int, millis: Double?): Int? {
+                if (millis != null) {
+                    forwardCost.record(instructionsExecuted.toLong(), millis)
+                }
+                instructions += instructionsExecuted
+                checkpointBytes = if (samples == 0) bytes.toDouble() else checkpointBytes * 0.9 + bytes * 0.1
+                if (++samples % RETUNE_EVERY != 0) {
+                    return null
+                }
+                val tuned = tunedInterval()
+                // Older behaviour weighs less and less.
+                instructions *= HISTORY_DECAY
+                stepBacks *= HISTORY_DECAY
+                if (tuned == interval || abs(tuned - interval) < interval / 4) {
+                    return null
+                }
+                Trace.info { "Checkpoint interval $interval -> $tuned (${forwardCost}, ${checkpointBytes.toInt()} bytes per checkpoint)" }
+                interval = tuned
+                return tuned
+            }
+
+            fun tunedInterval(): Int {
+                val perCheckpoint = forwardCost.fixedMillis
+                val perInstruction = forwardCost.millisPerUnit
+                if (perInstruction <= 0) {
+                    return minInterval
+                }
+                // The overhead of an interval i is perCheckpoint / (perCheckpoint + i * perInstruction).
+                val smallest = perCheckpoint * (1 - targetOverhead) / (targetOverhead * perInstruction)
+                val stepBackRate = stepBacks / maxOf(instructions, 1.0)
+                // Checkpointing every i instructions costs perCheckpoint / i per instruction, a step back replays i / 2
+                // instructions on average.
+                val optimal = if (stepBackRate > 0) sqrt(2 * perCheckpoint / (stepBackRate * perInstruction)) else Double.MAX_VALUE
+                return ceil(maxOf(optimal, smallest)).coerceIn(minInterval.toDouble(), maxInterval.toDouble()).toInt()
+            }
+
+            override fun toString() = "Adaptive checkpointing (interval $interval)"
+
+            companion object {
+                private const val RETUNE_EVERY = 16
+                private const val HISTORY_DECAY = 0.9
+            }
+        }
     }
 
     fun setSnapshotPolicy(policy: SnapshotPolicy) {
-        sendRaw("61${policy.serialize()}\n")
-        messageQueue.searchForResponse {
-            "Interrupt: 61"
+        // A retune of the previous policy is no longer needed.
+        pendingRetune.set(null)
+        sendSnapshotPolicy(policy)
+        snapshotPolicy = policy
+    }
+
+    /**
+     * Sends the interval [SnapshotPolicy.Adaptive] chose while handling a checkpoint on the read thread. It is sent
+     * by the thread that sends the next command, before that command and outside of a batch, and the acknowledgement
+     * is awaited there.
+     */
+    private fun applyPendingRetune() {
+        if (batchDepth.get() != 0) {
+            return
         }
+        val policy = pendingRetune.getAndSet(null) ?: return
+        if (policy === snapshotPolicy) {
+            sendSnapshotPolicy(policy)
+        }
+    }
+
+    private fun sendSnapshotPolicy(policy: SnapshotPolicy) {
+        val response = messageQueue.expect(61) { if (it.startsWith("Interrupt: 61")) it else null }
+        val message = "61${policy.serialize()}\n"
+        Trace.debug { "Sending ${message.trimEnd()}" }
+        write(message.toByteArray())
+        flush()
+        response.join()
+    }
+
+    companion object {
+        private val breakpointRegex = Regex("AT ([0-9]+)!")
+        private val binaryRegex = Regex("BINARY ([0-9]+)!")
+        private const val MAX_UPLOAD_RETRIES = 3
+        // The amount of bytes of a module that are sent per write.
+        private const val MODULE_CHUNK_SIZE = 16 * 1024
     }
 }
 
@@ -1,113 +1,235 @@
 package be.ugent.topl.mio.debugger
 
-import java.util.*
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
-class MessageQueue(private val notifyAdded: (List<String>) -> Unit = {}) {
-    private val queue = Collections.synchronizedList(mutableListOf<String>())
-    private val removeLock = ReentrantLock()
+/**
+ * Splits the incoming data into messages (one per line) and routes every complete message exactly once:
+ *
+ * 1. Handlers registered with [addHandler] get the first chance, they process unsolicited messages such as checkpoints
+ *    or breakpoint notifications.
+ * 2. Otherwise the message is offered to the outstanding responses registered with [expect], in the order they were
+ *    registered. The first one whose parser accepts the message is completed with the parsed value.
+ * 3. Messages nobody is waiting for are kept in a small backlog, so a response that arrives before anyone asked for it
+ *    can still be found.
+ *
+ * A parser signals that a message is not the response it is looking for by returning null.
+ *
+ * Lines are split on the raw bytes. Large messages, such as checkpoints, can be registered with a prefix so their
+ * payload is handed over as bytes without ever being decoded into a [String].
+ */
+class MessageQueue {
+    private val lock = ReentrantLock()
+    private val pushLock = ReentrantLock()
+    private var partialMessage = ByteArray(4096)
+    private var partialMessageLength = 0
+    private val backlog = ArrayDeque<String>()
+    private val pending = ArrayDeque<PendingResponse<*>>()
+    private val handlers = CopyOnWriteArrayList<(String) -> Boolean>()
+    private val byteHandlers = CopyOnWriteArrayList<ByteHandler>()
 
-    fun push(data: String, keepLock: Boolean = false) {
-        val splitData = data.split("\n").toMutableList()
-        removeLock.lock()
-        val startSize = queue.size
-        if (lastMessageIncomplete()) {
-            queue.add(queue.removeLast() + splitData.removeFirst())
-        }
-        queue.addAll(splitData)
-        val added = queue.size - startSize + if (lastMessageIncomplete()) -1 else 0
-        if (added > 0) {
-            notifyAdded(queue.subList(startSize, startSize + added))
+    private class ByteHandler(val prefix: ByteArray, val handler: (ByteArray, Int, Int) -> Unit)
+
+    private class PendingResponse<T>(val label: Int?, private val parser: (String) -> T?, val future: CompletableFuture<T>) {
+        private var result: T? = null
+
+        /**
+         * Returns true if [message] is the response we are waiting for. The caller completes the future once it has
+         * released the lock.
+         */
+        fun accepts(message: String): Boolean {
+            result = parseOrNull(parser, message)
+            return result != null
         }
-        if (!keepLock) {
-            removeLock.unlock()
+
+        fun complete() {
+            future.complete(result)
         }
     }
 
-    fun pushDone() {
-        removeLock.unlock()
+    /**
+     * Registers a [handler] for messages that are not a response to a request, it returns true if it consumed the
+     * message. Handlers are executed on the thread that pushes the data.
+     */
+    fun addHandler(handler: (String) -> Boolean) {
+        handlers.add(handler)
     }
 
-    private fun pop(): String {
-        return queue.removeFirst()
+    /**
+     * Registers a [handler] for every message that starts with [prefix]. The handler receives the buffer, offset and
+     * length of the payload after the prefix, the buffer is reused so the bytes have to be consumed before returning.
+     * Byte handlers are tried before the handlers registered with [addHandler].
+     */
+    fun addHandler(prefix: String, handler: (ByteArray, Int, Int) -> Unit) {
+        byteHandlers.add(ByteHandler(prefix.toByteArray(StandardCharsets.UTF_8), handler))
     }
 
-    private fun lastMessageIncomplete(): Boolean {
-        return !(queue.lastOrNull()?.endsWith("\n") ?: true)
+    fun push(data: String) {
+        val bytes = data.toByteArray(StandardCharsets.UTF_8)
+        push(bytes, bytes.size)
     }
 
-    private fun hasCompleteMessage(): Boolean {
-        return queue.isNotEmpty() && (!lastMessageIncomplete() || queue.size > 1)
+    fun push(data: ByteArray, length: Int = data.size) {
+        pushLock.withLock {
+            var start = 0
+            var end = data.indexOf(NEWLINE, 0, length)
+            while (end != -1) {
+                if (partialMessageLength == 0) {
+                    // The whole line is in the buffer we received, no need to copy it.
+                    dispatchLine(data, start, end - start)
+                } else {
+                    appendPartial(data, start, end - start)
+                    dispatchLine(partialMessage, 0, partialMessageLength)
+                    partialMessageLength = 0
+                }
+                start = end + 1
+                end = data.indexOf(NEWLINE, start, length)
+            }
+            appendPartial(data, start, length - start)
+        }
     }
 
-    /**
-     * Takes a [parser] as an input, it searches the message queue until it finds a message that the parser can parse
-     * without throwing an exception.
-     *
-     * TODO: This is not really an ideal implementation, it would be nice if responses were of a form:
-     * ```
-     * ack $interruptNumber;$payload
-     * ```
-     */
-    private fun <T> searchHacky(parser: (String) -> T): Pair<String, T>? {
-        removeLock.lock()
-        while (hasCompleteMessage()) {
-            val currentMsg = pop()
-            try {
-                val parsedMsg = parser(currentMsg)
-                removeLock.unlock()
-                return Pair(currentMsg, parsedMsg)
-            }
-            catch (_: Exception) {}
+    private fun appendPartial(data: ByteArray, offset: Int, length: Int) {
+        if (partialMessageLength + length > partialMessage.size) {
+            partialMessage = partialMessage.copyOf(maxOf(partialMessage.size * 2, partialMessageLength + length))
         }
+        System.arraycopy(data, offset, partialMessage, partialMessageLength, length)
+        partialMessageLength += length
+    }
 
-        removeLock.unlock()
-        return null
+    private fun dispatchLine(data: ByteArray, offset: Int, length: Int) {
+        var lineLength = length
+        if (lineLength > 0 && data[offset + lineLength - 1] == CARRIAGE_RETURN) {
+            lineLength--
+        }
+        for (byteHandler in byteHandlers) {
+            val prefix = byteHandler.prefix
+            if (data.startsWith(prefix, offset, lineLength)) {
+                byteHandler.handler(data, offset + prefix.size, lineLength - prefix.size)
+                return
+            }
+        }
+        dispatch(String(data, offset, lineLength, StandardCharsets.UTF_8))
     }
 
-    fun <T> search(parser: (String) -> T): Pair<String, T>? {
-        removeLock.lock()
-        val iter = queue.iterator()
-        while (iter.hasNext()) {
-            val msg = iter.next()
+    private fun dispatch(message: String) {
+        for (handler in handlers) {
+            if (handler(message)) {
+                return
+            }
+        }
 
-            if (msg === queue.last() && !lastMessageIncomplete() || msg !== queue.last()) {
-                try {
-                    val parsed = parser(msg)
+        val completed = lock.withLock {
+            val iter = pending.iterator()
+            while (iter.hasNext()) {
+                val response = iter.next()
+                if (response.future.isDone) {
+                    // Cancelled or timed out, nobody is waiting for this response anymore.
+                    iter.remove()
+                    continue
+                }
+                if (response.accepts(message)) {
                     iter.remove()
-                    //println("removing $msg")
-                    removeLock.unlock()
-                    return Pair(msg, parsed)
+                    return@withLock response
                 }
-                catch (_: Exception) {}
             }
+            backlog.addLast(message)
+            if (backlog.size > MAX_BACKLOG_SIZE) {
+                backlog.removeFirst()
+            }
+            null
         }
-
-        removeLock.unlock()
-        return null;
+        completed?.complete()
     }
 
-    fun <T> waitForResponse(parser: (String) -> T): Pair<String, T> {
-        var result = searchHacky(parser)
-        while(result == null) {
-            Thread.sleep(20)
-            result = searchHacky(parser)
+    /**
+     * Registers interest in a response that [parser] accepts and returns a future that is completed with the parsed
+     * value. The future is registered before the request is sent, so several requests can be outstanding at the same
+     * time without blocking the caller.
+     *
+     * Responses don't say which interrupt they answer, so they are matched by the parsers only, in the order they were
+     * registered. [label] (usually the interrupt code of the request) only names the response in the error of
+     * [cancelAll].
+     */
+    fun <T> expect(label: Int? = null, parser: (String) -> T?): CompletableFuture<T> {
+        val future = CompletableFuture<T>()
+        val response = PendingResponse(label, parser, future)
+        val found = lock.withLock {
+            // Older messages that precede the response are dropped, they can no longer be the answer to anything.
+            while (backlog.isNotEmpty()) {
+                if (response.accepts(backlog.removeFirst())) {
+                    return@withLock true
+                }
+            }
+            pending.addLast(response)
+            false
+        }
+        if (found) {
+            response.complete()
         }
-        return result
+        return future
     }
 
-    fun <T> searchForResponse(parser: (String) -> T): Pair<String, T> {
-        var result = search(parser)
-        while(result == null) {
-            Thread.sleep(20)
-            result = search (parser)
+    /**
+     * Completes all outstanding responses exceptionally, so no one keeps waiting for a response that will never arrive.
+     */
+    fun cancelAll(reason: String) {
+        val cancelled = lock.withLock {
+            val responses = pending.toList()
+            pending.clear()
+            responses
+        }
+        for (response in cancelled) {
+            response.future.completeExceptionally(IllegalStateException("$reason (waiting for response to interrupt ${response.label})"))
         }
-        return result
+    }
+
+    fun <T> waitForResponse(parser: (String) -> T?): Pair<String, T> {
+        return expect { message -> parseOrNull(parser, message)?.let { Pair(message, it) } }.join()
     }
 
     fun waitForResponse(str: String) {
-        waitForResponse {
-            if (it.trimEnd('\r') != str) throw Exception()
+        expect { if (it == str) it else null }.join()
+    }
+
+    companion object {
+        private const val MAX_BACKLOG_SIZE = 256
+        private const val NEWLINE = '\n'.code.toByte()
+        private const val CARRIAGE_RETURN = '\r'.code.toByte()
+
+        private fun ByteArray.indexOf(byte: Byte, from: Int, until: Int): Int {
+            for (i in from ..< until) {
+                if (this[i] == byte) {
+                    return i
+                }
+            }
+            return -1
+        }
+
+        private fun ByteArray.startsWith(prefix: ByteArray, offset: Int, length: Int): Boolean {
+            if (length < prefix.size) {
+                return false
+            }
+            for (i in prefix.indices) {
+                if (this[offset + i] != prefix[i]) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        /**
+         * Parsers should return null when a message doesn't match, a parser that throws is treated the same way.
+         */
+        private fun <T> parseOrNull(parser: (String) -> T?, message: String): T? {
+            return try {
+                parser(message)
+            } catch (_: Exception) {
+                null
+            }
         }
     }
 }
@@ -2,6 +2,7 @@ package be.ugent.topl.mio.debugger
 
 import WasmBinary
 import WasmInfo
+import be.ugent.topl.mio.Trace
 import be.ugent.topl.mio.concolic.analyse
 import be.ugent.topl.mio.concolic.processPaths
 import be.ugent.topl.mio.connections.Connection
@@ -163,8 +164,14 @@ class MultiverseDebugger(
 ) : Debugger(connection, start, onHitBreakpoint) {
     val graph = MultiverseGraph()
     private var len = 0
+    // The node at the end of the history while seek moved back from it, the current node is one of its ancestors.
+    private var endNode: MultiverseNode? = null
     val overrides = mutableMapOf<String, MutableMap<Int, Int>>()
 
+    init {
+        pinnedPcs = wasmBinary.metadata.after_primitive_calls.toSet()
+    }
+
     // TODO: Remove, just for testing
     init {
         //pause()
@@ -172,7 +179,7 @@ class MultiverseDebugger(
 
     override fun stepInto() {
         super.stepInto()
-        println("Step!")
+        Trace.debug { "Step!" }
 
         // If a checkpoint is received an a new node is created then we will be at that node and then it won't have children
         /*if (graph.currentNode.children.isNotEmpty()) {
@@ -196,7 +203,7 @@ class MultiverseDebugger(
         // TODO: VM doesn't take snapshots on step over currently.
         if (pathExists) {
             val instructionsExecuted = checkpoints.size - startSize
-            println(instructionsExecuted)
+            Trace.debug { instructionsExecuted.toString() }
             val dest = startNode.nextNode(overrides, instructionsExecuted)
             graph.currentNode = dest
         }*/
@@ -213,6 +220,33 @@ class MultiverseDebugger(
         graphUpdated()
     }
 
+    /**
+     * Every instruction of the history is a node on the path from the root to the end of the history, so the node of
+     * time t is the ancestor of the end node that is as many instructions before the end.
+     */
+    override fun seek(t: Int) {
+        val end = endNode ?: graph.currentNode
+        super.seek(t)
+        var node = end
+        repeat(checkpoints.size - 1 - time) {
+            node = node.parent!!
+        }
+        graph.currentNode = node
+        endNode = if (node != end) end else null
+        graphUpdated()
+    }
+
+    override fun branchFromCursor() {
+        val size = checkpoints.size
+        super.branchFromCursor()
+        if (checkpoints.size != size) {
+            // The history after the current node was dropped. Its nodes stay in the graph, executing further walks
+            // along them while the program takes the same path.
+            len = checkpoints.size
+            endNode = null
+        }
+    }
+
     override fun continueFor(n: Int) {
         /*var destinationNode = graph.currentNode
         for (i in 0 ..< n) {
@@ -281,9 +315,18 @@ class MultiverseDebugger(
 
     override fun checkpointsUpdated() {
         super.checkpointsUpdated()
-        val newCheckpoints = checkpoints.toList()
+        // Only look at the new part of the timeline, copying all of it would visit every instruction executed so far.
+        val newCheckpoints = checkpoints
+        if (newCheckpoints.size < len) {
+            // The end of the history was dropped (stepping back), the current node moves back with it. Instructions
+            // that are executed again walk along the existing nodes.
+            repeat(len - newCheckpoints.size) {
+                graph.currentNode = graph.currentNode.parent ?: return@repeat
+            }
+            len = newCheckpoints.size
+        }
         if (newCheckpoints.size > len)
-            println("Checkpoints: ${newCheckpoints.subList(len, newCheckpoints.size)}")
+            Trace.debug { "Checkpoints: ${newCheckpoints.subList(len, newCheckpoints.size)}" }
         val change = newCheckpoints.size - len
         len = newCheckpoints.size
 
@@ -388,7 +431,7 @@ class MultiverseDebugger(
 
     // TODO: Remove/move/improve
     fun getCurrentState(): WOODDumpResponse {
-        return checkpoints.last()!!.snapshot
+        return currentCheckpoint()!!.snapshot
     }
 }
 
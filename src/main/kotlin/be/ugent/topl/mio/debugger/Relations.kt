@@ -1,5 +1,6 @@
 package be.ugent.topl.mio.debugger
 
+import be.ugent.topl.mio.Trace
 import be.ugent.topl.mio.woodstate.IOState
 import java.io.File
 
@@ -59,7 +60,7 @@ class ConstraintParser(private val tokens: List<Token>) {
             else -> throw RuntimeException("Unknown operator $compOperator")
         }
         val value = expectToken(TokenType.VALUE).lexeme.toInt()
-        println("Compare $keyToken, $value")
+        Trace.debug { "Compare $keyToken, $value" }
         return Pair(IOState(keyToken, true, value), comp)
     }
 
@@ -0,0 +1,128 @@
+package be.ugent.topl.mio.debugger
+
+import be.ugent.topl.mio.Trace
+import be.ugent.topl.mio.connections.Connection
+import be.ugent.topl.mio.connections.ProcessConnection
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Extra VMs (usually emulators, see [emulators]) that search the history of [debugger] in parallel. Every worker gets
+ * a different checkpoint interval of the history: it restores the checkpoint at the start of the interval, replays
+ * the interval with a checkpoint after every instruction and reports the time it found back, the main debugger can
+ * then [seek][Debugger.seek] to it.
+ *
+ * Like [Debugger.reverseContinue], intervals that end at a primitive call are not replayed.
+ */
+class ReplayPool(private val debugger: Debugger, connections: List<Connection>) : Closeable {
+    // The state at end is only known if there is a checkpoint.
+    private class Interval(val start: Int, val startState: WOODDumpResponse, val end: Int, val endState: WOODDumpResponse?, val replay: Boolean)
+
+    private val workers = connections.map { connection ->
+        Debugger(connection).apply {
+            setSnapshotPolicy(Debugger.SnapshotPolicy.Checkpointing(1))
+        }
+    }
+
+    val size: Int
+        get() = workers.size
+
+    /**
+     * Returns the last time between [from] and [to] at which [select] of the state differs from the state one
+     * instruction earlier, for example the value of a global. Null if it doesn't change.
+     */
+    fun lastChange(from: Int = 0, to: Int = debugger.time, select: (WOODDumpResponse) -> Any?): Int? {
+        return findLast(from, to) { before, after -> select(before) != select(after) }
+    }
+
+    /**
+     * Returns the last time between [from] and [to] at which [found] is true for the state one instruction earlier and
+     * the state at that time, null if it never is. The intervals are handed to the workers from the last one back, the
+     * search stops as soon as the intervals after the one with the latest result are done.
+     */
+    fun findLast(from: Int = 0, to: Int = debugger.time, found: (before: WOODDumpResponse, after: WOODDumpResponse) -> Boolean): Int? {
+        val intervals = intervals(from, to)
+        Trace.info { "Searching ${intervals.size} intervals between $from and $to with ${workers.size} workers" }
+        val results = arrayOfNulls<Int>(intervals.size)
+        val next = AtomicInteger(0)
+        // The position of the latest interval with a result, the intervals after it are never skipped.
+        val latest = AtomicInteger(Int.MAX_VALUE)
+        val threads = workers.map { worker ->
+            thread(name = "Replay worker") {
+                while (true) {
+                    val i = next.getAndIncrement()
+                    if (i >= intervals.size || i > latest.get()) {
+                        break
+                    }
+                    val result = search(worker, intervals[i], found)
+                    if (result != null) {
+                        results[i] = result
+                        latest.accumulateAndGet(i, ::minOf)
+                    }
+                }
+            }
+        }
+        threads.forEach { it.join() }
+        // The oldest interval can start before from.
+        return results.firstNotNullOfOrNull { it }?.takeIf { it > from }
+    }
+
+    // The intervals between consecutive checkpoints up to to, the last one first. They are collected before the
+    // workers start, the timeline of the debugger is not thread safe.
+    private fun intervals(from: Int, to: Int): List<Interval> {
+        require(to < debugger.checkpoints.size) { "Time $to is not part of the history (0 ..< ${debugger.checkpoints.size})" }
+        val intervals = mutableListOf<Interval>()
+        var end = to
+        var endCheckpoint = debugger.checkpoints[to]
+        var start = debugger.checkpoints.nearestAtOrBefore(end - 1)
+        while (start != null && end > from) {
+            val known = endCheckpoint != null && (end - start.index == 1 || debugger.isReplayBarrier(endCheckpoint))
+            // The workers must not stop at the breakpoints of the main debugger.
+            val startState = start.value.snapshot.copy(breakpoints = emptyList())
+            intervals.add(Interval(start.index, startState, end, endCheckpoint?.snapshot, !known))
+            end = start.index
+            endCheckpoint = start.value
+            start = debugger.checkpoints.nearestAtOrBefore(end - 1)
+        }
+        return intervals
+    }
+
+    private fun search(worker: Debugger, interval: Interval, found: (WOODDumpResponse, WOODDumpResponse) -> Boolean): Int? {
+        if (!interval.replay) {
+            // Only the states at both ends are known, only adjacent states can be compared.
+            val adjacent = interval.end - interval.start == 1
+            return if (adjacent && found(interval.startState, interval.endState!!)) interval.end else null
+        }
+        worker.checkpoints.clear()
+        worker.loadSnapshot(interval.startState)
+        worker.continueFor(interval.end - interval.start)
+        val states = listOf(interval.startState) + worker.checkpoints.indexedCheckpoints().map { it.value.snapshot }
+        worker.checkpoints.clear()
+        if (states.size != interval.end - interval.start + 1) {
+            System.err.println("WARNING: Replaying ${interval.start} to ${interval.end} took ${states.size - 1} checkpoints, skipping it!")
+            return null
+        }
+        for (k in states.size - 1 downTo 1) {
+            if (found(states[k - 1], states[k])) {
+                return interval.start + k
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+        workers.forEach { it.close() }
+    }
+
+    companion object {
+        /**
+         * Starts [workers] emulators that run [wasmFile], one less than the amount of processors by default so the
+         * main VM keeps one.
+         */
+        fun emulators(debugger: Debugger, wdcliPath: String, wasmFile: String, workers: Int = maxOf(Runtime.getRuntime().availableProcessors() - 1, 1)): ReplayPool {
+            return ReplayPool(debugger, List(workers) { ProcessConnection(wdcliPath, wasmFile, "--no-socket", "--paused", name = "Replay worker $it") })
+        }
+    }
+}
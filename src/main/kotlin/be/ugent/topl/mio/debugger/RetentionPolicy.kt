@@ -0,0 +1,156 @@
+package be.ugent.topl.mio.debugger
+
+import be.ugent.topl.mio.woodstate.Checkpoint
+
+/**
+ * Decides which checkpoints are kept when the history grows. Evicted checkpoints are replaced by re-executing from an
+ * older checkpoint when stepping back, so the cost of stepping back grows with the gaps a policy leaves behind.
+ *
+ * The debugger always keeps the current state and the checkpoints it can't reproduce by re-executing (see
+ * [Debugger.isPinned]), whatever the policy says.
+ */
+sealed class RetentionPolicy {
+    /**
+     * Returns the checkpoints that should be evicted, or null if the policy doesn't need to evict anything right now.
+     * [pinned] checkpoints are never evicted, policies may take them into account for their budget.
+     */
+    abstract fun select(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean): ((Int, Checkpoint) -> Boolean)?
+
+    fun enforce(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean) {
+        val evict = select(timeline, pinned) ?: return
+        timeline.retainCheckpoints { t, checkpoint -> pinned(t, checkpoint) || !evict(t, checkpoint) }
+    }
+
+    class KeepAll : RetentionPolicy() {
+        override fun select(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean) = null
+        override fun toString() = "Keep all checkpoints"
+    }
+
+    /**
+     * Keeps the last [count] checkpoints. To avoid compacting the history on every new checkpoint it is only done
+     * once there are an eighth more checkpoints than allowed.
+     */
+    data class KeepLast(val count: Int) : RetentionPolicy() {
+        init {
+            require(count > 0) { "The amount of checkpoints to keep should be at least 1" }
+        }
+
+        override fun select(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean): ((Int, Checkpoint) -> Boolean)? {
+            if (timeline.checkpointCount <= count + count / 8) {
+                return null
+            }
+            val oldestKept = timeline.summaries().elementAt(timeline.checkpointCount - count).index
+            return { t, _ -> t < oldestKept }
+        }
+    }
+
+    /**
+     * Keeps the most recent checkpoints that fit in [megabytes], memory blocks that are shared between checkpoints are
+     * only counted once.
+     */
+    data class MemoryBudget(val megabytes: Int) : RetentionPolicy() {
+        init {
+            require(megabytes > 0) { "The checkpoint memory budget should be at least 1 megabyte" }
+        }
+
+        private var checkedAt = 0
+
+        override fun select(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean): ((Int, Checkpoint) -> Boolean)? {
+            // Estimating the size visits all checkpoints, so only do it every so often.
+            if (timeline.checkpointCount < checkedAt + CHECK_INTERVAL && timeline.checkpointCount >= checkedAt) {
+                return null
+            }
+            val budget = megabytes.toLong() * 1024 * 1024
+            val checkpoints = timeline.summaries().toList()
+            var total = 0L
+            var oldestKept = Int.MAX_VALUE
+            for (i in checkpoints.indices.reversed()) {
+                val (t, checkpoint) = checkpoints[i]
+                val previous = checkpoints.getOrNull(i - 1)?.value
+                total += estimateSize(checkpoint, previous)
+                if (total > budget && !pinned(t, checkpoint)) {
+                    break
+                }
+                oldestKept = t
+            }
+            checkedAt = timeline.checkpointCount
+            if (oldestKept == checkpoints.firstOrNull()?.index) {
+                return null
+            }
+            return { t, _ -> t < oldestKept }
+        }
+
+        companion object {
+            private const val CHECK_INTERVAL = 64
+            private const val CHECKPOINT_OVERHEAD = 2048
+
+            fun estimateSize(checkpoint: Checkpoint, previous: Checkpoint?): Long {
+                val memory = checkpoint.snapshot.memory?.storedSize(previous?.snapshot?.memory) ?: 0
+                return CHECKPOINT_OVERHEAD.toLong() + memory
+            }
+        }
+    }
+
+    /**
+     * Keeps all checkpoints of the last [window] instructions and thins out the older ones, the further back in time
+     * the fewer checkpoints are kept. Every doubling of the age keeps at most [PER_LEVEL] checkpoints, so the number
+     * of checkpoints grows logarithmically with the length of the session.
+     */
+    data class ExponentialThinning(val window: Int) : RetentionPolicy() {
+        init {
+            require(window > 0) { "The window of kept checkpoints should be at least 1 instruction" }
+        }
+
+        private var checkedCount = 0
+
+        override fun select(timeline: CheckpointTimeline, pinned: (Int, Checkpoint) -> Boolean): ((Int, Checkpoint) -> Boolean)? {
+            if (timeline.checkpointCount < checkedCount + PER_LEVEL && timeline.checkpointCount >= checkedCount) {
+                return null
+            }
+            val now = timeline.size - 1
+            // Keep the oldest checkpoint of every bucket, buckets of a level are twice as wide as those of the level
+            // below so the kept checkpoints stay the same as they age.
+            var previousLevel = -1
+            var previousBucket = -1L
+            val keep = mutableSetOf<Int>()
+            for ((t, _) in timeline.summaries()) {
+                val age = now - t
+                if (age < window) {
+                    keep.add(t)
+                    continue
+                }
+                val level = 31 - Integer.numberOfLeadingZeros(age / window)
+                val bucketWidth = maxOf((window.toLong() shl level) / PER_LEVEL, 1)
+                val bucket = t / bucketWidth
+                if (level != previousLevel || bucket != previousBucket) {
+                    keep.add(t)
+                }
+                previousLevel = level
+                previousBucket = bucket
+            }
+            checkedCount = keep.size
+            return { t, _ -> t !in keep }
+        }
+
+        companion object {
+            private const val PER_LEVEL = 16
+        }
+    }
+
+    companion object {
+        /**
+         * Parses the `checkpointRetention` setting: "all", "last:<n>", "megabytes:<n>" or "exponential:<instructions>".
+         * The amounts should be positive, an [IllegalArgumentException] is thrown otherwise.
+         */
+        fun parse(setting: String): RetentionPolicy {
+            val parts = setting.trim().split(":")
+            return when (parts[0]) {
+                "all" -> KeepAll()
+                "last" -> KeepLast(parts[1].toInt())
+                "megabytes" -> MemoryBudget(parts[1].toInt())
+                "exponential" -> ExponentialThinning(parts[1].toInt())
+                else -> throw IllegalArgumentException("Unknown checkpoint retention policy \"$setting\"")
+            }
+        }
+    }
+}
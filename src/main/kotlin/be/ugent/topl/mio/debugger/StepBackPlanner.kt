@@ -0,0 +1,126 @@
+package be.ugent.topl.mio.debugger
+
+import be.ugent.topl.mio.woodstate.Checkpoint
+
+/**
+ * Decides how the VM gets to an earlier point in time when the timeline has no checkpoint there: which checkpoint to
+ * restore and how to replay the instructions from that checkpoint to the target.
+ *
+ * Restoring a checkpoint costs time in proportion to the size of its snapshot and replaying in proportion to the number
+ * of instructions, both are measured while debugging (see [uploadCost] and [replayCost]). A checkpoint further back can
+ * be cheaper to restore than the nearest one, for example when only a small part of the memory has to be sent, but
+ * replay may never run past a checkpoint that can't be reproduced (a primitive call).
+ *
+ * Long replays are split so they leave checkpoints behind at halving distances from the target, stepping back again
+ * soon after then doesn't replay the whole distance again.
+ */
+class StepBackPlanner {
+    /**
+     * Estimates the time of an operation as a fixed cost plus a cost per unit (bytes sent, instructions executed). Both
+     * are fitted to the measurements with exponentially decaying weights, so the estimate follows changes in the
+     * connection or the program.
+     */
+    class CostModel(fixedMillis: Double, millisPerUnit: Double, private val decay: Double = 0.8) {
+        var fixedMillis = fixedMillis
+            private set
+        var millisPerUnit = millisPerUnit
+            private set
+        private var weight = 0.0
+        private var sumX = 0.0
+        private var sumY = 0.0
+        private var sumXX = 0.0
+        private var sumXY = 0.0
+
+        fun estimate(units: Long): Double = fixedMillis + millisPerUnit * units
+
+        @Synchronized
+        fun record(units: Long, millis: Double) {
+            val x = units.toDouble()
+            weight = weight * decay + 1
+            sumX = sumX * decay + x
+            sumY = sumY * decay + millis
+            sumXX = sumXX * decay + x * x
+            sumXY = sumXY * decay + x * millis
+            val meanX = sumX / weight
+            val meanY = sumY / weight
+            val varianceX = sumXX / weight - meanX * meanX
+            if (varianceX > 1e-9 * maxOf(meanX * meanX, 1.0)) {
+                millisPerUnit = maxOf((sumXY / weight - meanX * meanY) / varianceX, 0.0)
+                fixedMillis = maxOf(meanY - millisPerUnit * meanX, 0.0)
+            } else if (meanX > 0) {
+                // All measurements are about the same size, only the cost per unit can be updated.
+                millisPerUnit = maxOf((meanY - fixedMillis) / meanX, 0.0)
+            } else {
+                fixedMillis = meanY
+            }
+        }
+
+        override fun toString() = String.format("%.2fms + %.5fms/unit", fixedMillis, millisPerUnit)
+    }
+
+    /**
+     * Restore [restore] and then replay the instructions in [replay], one continue per element.
+     */
+    data class Plan(val restore: IndexedValue<Checkpoint>, val replay: List<Int>, val cost: Double)
+
+    // Milliseconds to restore a snapshot per estimated byte, see Debugger.estimateUploadSize.
+    val uploadCost = CostModel(50.0, 0.001)
+    // Milliseconds to execute instructions with a continue, including receiving the checkpoint at the end.
+    val replayCost = CostModel(10.0, 0.01)
+
+    /**
+     * Returns the cheapest plan to reach [target] in [timeline]. Candidates are the checkpoints at or before [target],
+     * going back until a checkpoint for which [isBarrier] is true, which replay can't run past.
+     */
+    fun plan(timeline: CheckpointTimeline, target: Int, isBarrier: (Checkpoint) -> Boolean, uploadSize: (Checkpoint) -> Long): Plan? {
+        var best: Plan? = null
+        var candidate = timeline.nearestAtOrBefore(target)
+        var candidates = 0
+        while (candidate != null && candidates < MAX_CANDIDATES) {
+            val distance = target - candidate.index
+            // Replaying further than this costs more than the best plan, no matter how cheap the restore is.
+            if (best != null && replayCost.estimate(distance.toLong()) >= best.cost) {
+                break
+            }
+            val replay = segments(distance)
+            val cost = uploadCost.estimate(uploadSize(candidate.value)) + replay.sumOf { replayCost.estimate(it.toLong()) }
+            if (best == null || cost < best.cost) {
+                best = Plan(candidate, replay, cost)
+            }
+            if (isBarrier(candidate.value)) {
+                break
+            }
+            candidates++
+            candidate = timeline.nearestAtOrBefore(candidate.index - 1)
+        }
+        return best
+    }
+
+    /**
+     * Splits a replay of [distance] instructions in continues that end at half, three quarters, ... of the distance,
+     * as long as the part that is left is long enough to be worth the extra round trip.
+     */
+    fun segments(distance: Int): List<Int> {
+        if (distance == 0) {
+            return emptyList()
+        }
+        val perUnit = replayCost.millisPerUnit
+        // At least one instruction, a fixed cost of 0 would otherwise split forever.
+        val worthwhile = if (perUnit > 0) maxOf(replayCost.fixedMillis * WORTHWHILE_FACTOR / perUnit, 1.0) else Double.MAX_VALUE
+        val segments = mutableListOf<Int>()
+        var remaining = distance
+        while (remaining / 2 >= worthwhile) {
+            val segment = remaining - remaining / 2
+            segments.add(segment)
+            remaining -= segment
+        }
+        segments.add(remaining)
+        return segments
+    }
+
+    companion object {
+        private const val MAX_CANDIDATES = 16
+        // A checkpoint is left behind if replaying up to it costs this many times the round trip it adds.
+        private const val WORTHWHILE_FACTOR = 4
+    }
+}
@@ -0,0 +1,135 @@
+package be.ugent.topl.mio.debugger
+
+import java.util.Arrays
+
+/**
+ * The sections of a WebAssembly binary, as far as the debugger needs them to find out which functions changed between
+ * two versions of a module. Only the import section (for the amount of imported functions) and the code section are
+ * parsed, the other sections are compared byte for byte.
+ */
+class WasmModule(private val bytes: ByteArray) {
+    /**
+     * A function body from the code section, [fidx] counts the imported functions.
+     */
+    class FunctionBody(val fidx: Int, private val bytes: ByteArray, private val offset: Int, val size: Int) {
+        fun toByteArray(): ByteArray = bytes.copyOfRange(offset, offset + size)
+
+        fun contentEquals(other: FunctionBody): Boolean =
+            size == other.size && Arrays.equals(bytes, offset, offset + size, other.bytes, other.offset, other.offset + other.size)
+    }
+
+    private class Section(val id: Int, val start: Int, val end: Int)
+
+    private val sections = mutableListOf<Section>()
+    private var position = 8
+
+    val importedFunctions: Int
+    val functions: List<FunctionBody>
+
+    init {
+        require(bytes.size >= 8 && bytes[0] == 0.toByte() && bytes[1] == 'a'.code.toByte() &&
+                bytes[2] == 's'.code.toByte() && bytes[3] == 'm'.code.toByte()) { "Not a WebAssembly module" }
+        while (position < bytes.size) {
+            val id = bytes[position++].toInt()
+            val size = readULEB128()
+            require(position + size <= bytes.size) { "Section $id extends past the end of the module" }
+            sections.add(Section(id, position, position + size))
+            position += size
+        }
+        importedFunctions = sections.find { it.id == IMPORT_SECTION }?.let { countImportedFunctions(it) } ?: 0
+        functions = sections.find { it.id == CODE_SECTION }?.let { readFunctionBodies(it) } ?: emptyList()
+    }
+
+    private fun readULEB128(): Int {
+        var result = 0
+        var shift = 0
+        while (true) {
+            val b = bytes[position++].toInt()
+            result = result or ((b and 0x7f) shl shift)
+            if (b and 0x80 == 0) {
+                return result
+            }
+            shift += 7
+        }
+    }
+
+    private fun skipName() {
+        val length = readULEB128()
+        position += length
+    }
+
+    private fun skipLimits() {
+        val flags = bytes[position++].toInt()
+        readULEB128()
+        if (flags and 1 != 0) {
+            readULEB128()
+        }
+    }
+
+    private fun countImportedFunctions(section: Section): Int {
+        position = section.start
+        var functions = 0
+        repeat(readULEB128()) {
+            skipName()
+            skipName()
+            when (val kind = bytes[position++].toInt()) {
+                0 -> { readULEB128(); functions++ }
+                1 -> { position++; skipLimits() }
+                2 -> skipLimits()
+                3 -> position += 2
+                4 -> { position++; readULEB128() }
+                else -> throw IllegalArgumentException("Unknown import kind $kind")
+            }
+        }
+        return functions
+    }
+
+    private fun readFunctionBodies(section: Section): List<FunctionBody> {
+        position = section.start
+        return List(readULEB128()) { i ->
+            val size = readULEB128()
+            val body = FunctionBody(importedFunctions + i, bytes, position, size)
+            position += size
+            body
+        }
+    }
+
+    /**
+     * Returns true if the sections other than the code section and custom sections are the same in [other], i.e. the
+     * modules only differ in their function bodies and debug information.
+     */
+    fun sameLayoutAs(other: WasmModule): Boolean {
+        val layout = sections.filter { it.id != CUSTOM_SECTION && it.id != CODE_SECTION }
+        val otherLayout = other.sections.filter { it.id != CUSTOM_SECTION && it.id != CODE_SECTION }
+        return layout.size == otherLayout.size && layout.zip(otherLayout).all { (a, b) ->
+            a.id == b.id && Arrays.equals(bytes, a.start, a.end, other.bytes, b.start, b.end)
+        }
+    }
+
+    companion object {
+        private const val CUSTOM_SECTION = 0
+        private const val IMPORT_SECTION = 2
+        private const val CODE_SECTION = 10
+
+        /**
+         * Returns the function bodies of [new] that differ from those in [old], or null if the modules differ in more
+         * than their function bodies (imports, types, memory, globals, ...) and the complete module has to be uploaded.
+         */
+        fun changedFunctions(old: ByteArray, new: ByteArray): List<FunctionBody>? {
+            val oldModule: WasmModule
+            val newModule: WasmModule
+            try {
+                oldModule = WasmModule(old)
+                newModule = WasmModule(new)
+            } catch (_: IllegalArgumentException) {
+                return null
+            } catch (_: IndexOutOfBoundsException) {
+                return null
+            }
+            if (!oldModule.sameLayoutAs(newModule) || oldModule.functions.size != newModule.functions.size) {
+                return null
+            }
+            return newModule.functions.filterIndexed { i, function -> !function.contentEquals(oldModule.functions[i]) }
+        }
+    }
+}
@@ -1,5 +1,4 @@
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import be.ugent.topl.mio.Json
 import java.io.File
 import java.util.*
 
@@ -21,10 +20,8 @@ fun getBinaryInfo(wdcliPath: String, wasmFile: String): WasmInfo {
         val currentLine = lineScanner.nextLine()
         lines.add(currentLine)
         if (currentLine.startsWith("{\"")) {
-            val objectMapper = ObjectMapper()
-            objectMapper.registerKotlinModule()
             process.destroy()
-            return objectMapper.readValue(currentLine, WasmInfo::class.java)
+            return Json.wasmInfoReader.readValue(currentLine)
         }
     }
     process.destroy()
@@ -1,10 +1,11 @@
 package be.ugent.topl.mio.ui
 
 import WasmInfo
+import be.ugent.topl.mio.Json
+import be.ugent.topl.mio.debugger.CheckpointTimeline
 import be.ugent.topl.mio.debugger.Debugger
 import be.ugent.topl.mio.woodstate.Checkpoint
 import be.ugent.topl.mio.woodstate.WOODDumpResponse
-import com.fasterxml.jackson.databind.ObjectMapper
 import java.awt.Color
 import java.awt.Component
 import java.awt.Dimension
@@ -16,32 +17,29 @@ import javax.swing.tree.DefaultMutableTreeNode
 import javax.swing.tree.DefaultTreeCellRenderer
 
 
-class CheckpointVisualiser(checkpoints: List<Checkpoint?>, binaryInfo: WasmInfo, debugger: Debugger) : JFrame("Checkpoints") {
+class CheckpointVisualiser(checkpoints: CheckpointTimeline, binaryInfo: WasmInfo, debugger: Debugger) : JFrame("Checkpoints") {
     init {
         setSize(640, 480)
         minimumSize = Dimension(350, 100)
         val root = DefaultMutableTreeNode()
-        for (t in checkpoints.indices) {
-            val checkpoint = checkpoints[t]
-            if (checkpoint != null) {
-                val checkPointNode = CheckpointNode(t, binaryInfo, checkpoint)
-                checkPointNode.add(DefaultMutableTreeNode("pc = 0x${checkpoint.snapshot.pc?.toString(16)}"))
-                checkPointNode.add(DefaultMutableTreeNode("io = ${ObjectMapper().writer().writeValueAsString(checkpoint.snapshot.io)}"))
-                checkPointNode.add(DefaultMutableTreeNode("memory = ${checkpoint.snapshot.memory}"))
-                val neoPixelState = getNeoPixelColors(checkpoint.snapshot, "n")
-                if (neoPixelState.size == 64) {
-                    val neoPixelNode = DefaultMutableTreeNode("NeoPixel state")
-                    neoPixelNode.add(NeoPixelNode(neoPixelState))
-                    checkPointNode.add(neoPixelNode)
-                }
-                val neoPixelBufferState = getNeoPixelColors(checkpoint.snapshot, "b")
-                if (neoPixelBufferState.size == 64) {
-                    val neoPixelNode = DefaultMutableTreeNode("NeoPixel buffer")
-                    neoPixelNode.add(NeoPixelNode(neoPixelBufferState))
-                    checkPointNode.add(neoPixelNode)
-                }
-                root.add(checkPointNode)
+        for ((t, checkpoint) in checkpoints.indexedCheckpoints()) {
+            val checkPointNode = CheckpointNode(t, binaryInfo, checkpoint)
+            checkPointNode.add(DefaultMutableTreeNode("pc = 0x${checkpoint.snapshot.pc?.toString(16)}"))
+            checkPointNode.add(DefaultMutableTreeNode("io = ${Json.mapper.writeValueAsString(checkpoint.snapshot.io)}"))
+            checkPointNode.add(DefaultMutableTreeNode("memory = ${checkpoint.snapshot.memory}"))
+            val neoPixelState = getNeoPixelColors(checkpoint.snapshot, "n")
+            if (neoPixelState.size == 64) {
+                val neoPixelNode = DefaultMutableTreeNode("NeoPixel state")
+                neoPixelNode.add(NeoPixelNode(neoPixelState))
+                checkPointNode.add(neoPixelNode)
+            }
+            val neoPixelBufferState = getNeoPixelColors(checkpoint.snapshot, "b")
+            if (neoPixelBufferState.size == 64) {
+                val neoPixelNode = DefaultMutableTreeNode("NeoPixel buffer")
+                neoPixelNode.add(NeoPixelNode(neoPixelBufferState))
+                checkPointNode.add(neoPixelNode)
             }
+            root.add(checkPointNode)
         }
         val tree = JTree(root)
 
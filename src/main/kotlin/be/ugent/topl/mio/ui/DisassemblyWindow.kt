@@ -25,7 +25,7 @@ class DisassemblyWindow(debugger: Debugger, wasmFile: String) : JFrame("Disassem
         preferredSize = Dimension(400, 600)
         isVisible = true
 
-        highlightCurrentLine(debugger.checkpoints.last()!!.snapshot)
+        highlightCurrentLine(debugger.currentCheckpoint()!!.snapshot)
 
         val listener = this::highlightCurrentLine
         addWindowListener(object : WindowAdapter() {
@@ -2,11 +2,14 @@ package be.ugent.topl.mio.ui
 
 import WasmBinary
 import be.ugent.topl.mio.DebuggerConfig
+import be.ugent.topl.mio.Trace
 import be.ugent.topl.mio.connections.Connection
 import be.ugent.topl.mio.debugger.ConstraintParser
 import be.ugent.topl.mio.debugger.Debugger
 import be.ugent.topl.mio.debugger.MultiverseDebugger
 import be.ugent.topl.mio.debugger.PrimitiveNode
+import be.ugent.topl.mio.debugger.ReplayPool
+import be.ugent.topl.mio.debugger.RetentionPolicy
 import be.ugent.topl.mio.sourcemap.SourceMap
 import be.ugent.topl.mio.woodstate.Checkpoint
 import be.ugent.topl.mio.woodstate.WOODDumpResponse
@@ -41,6 +44,9 @@ class InteractiveDebugger(
     private val wasmFile: String = "/home/maarten/Documents/School/Thesis/thesis-git/wardbg/simple-sym-test.wasm",
     private val config: DebuggerConfig
 ) : JFrame("WARDuino Debugger") {
+    init {
+        Trace.level = config.traceLevel
+    }
     private val binaryInfo = getBinaryInfo(symbolicWdcliPath, File(wasmFile).absolutePath)
     private val debugger = MultiverseDebugger(
         connection,
@@ -50,7 +56,19 @@ class InteractiveDebugger(
         this::onGraphUpdate,
         this::onMockingUpdate,
         this::onHitBreakpoint
-    )
+    ).apply {
+        retentionPolicy = RetentionPolicy.parse(config.checkpointRetention)
+        uploadWindow = config.uploadWindow
+        memoryDiffRestore = config.memoryDiffRestore
+        // The VM was started with this module, so reloading it after a rebuild only sends the changed functions.
+        loadedModule = File(wasmFile).readBytes()
+        config.checkpointSpillAfter?.let {
+            spillCheckpoints(File(DebuggerConfig.configDir, "checkpoints"), it)
+        }
+        if (config.replayWorkers > 0) {
+            replayPool = ReplayPool.emulators(this, config.wdcliPath, wasmFile, config.replayWorkers)
+        }
+    }
     private val pauseButton = JButton().apply {
         toolTipText = "Pause/Continue"
     }
@@ -75,6 +93,12 @@ class InteractiveDebugger(
     private val progressBar = JProgressBar().apply {
         isVisible = false
     }
+    private val timelineSlider = JSlider(0, 0, 0)
+    // Set while the slider is moved to the time of the debugger, so it doesn't seek.
+    private var updatingTimeline = false
+    // Seeking happens in the background, the last time the slider is moved to in the meantime is sought next.
+    private var seeking = false
+    private var pendingSeek: Int? = null
     private val allButtons = listOf(pauseButton, stepBackButton, stepOverButton, stepIntoButton, stepLineButton, stepBackLineButton, flashButton)
     private val pausedOnlyButtons = listOf(stepBackButton, stepOverButton, stepIntoButton, stepLineButton, stepBackLineButton)
     private var paused = false
@@ -165,7 +189,7 @@ class InteractiveDebugger(
             println("Step line")
             var startLine = -1
             try {
-                startLine = sourceMapping.getLineForPc(debugger.checkpoints.last()!!.snapshot.pc!!)
+                startLine = sourceMapping.getLineForPc(debugger.currentCheckpoint()!!.snapshot.pc!!)
             } catch(re: RuntimeException) {
                 System.err.println("WARNING: " + re.message)
             }
@@ -190,7 +214,7 @@ class InteractiveDebugger(
             println("Step back line")
             var startLine = -1
             try {
-                startLine = sourceMapping.getLineForPc(debugger.checkpoints.last()!!.snapshot.pc!!)
+                startLine = sourceMapping.getLineForPc(debugger.currentCheckpoint()!!.snapshot.pc!!)
             } catch(re: RuntimeException) {
                 System.err.println("WARNING: " + re.message)
             }
@@ -211,7 +235,27 @@ class InteractiveDebugger(
             if (dialog.showDialog(this, "Upload") == JFileChooser.APPROVE_OPTION) {
                 debugger.updateModule(dialog.selectedFile.absolutePath)
             }*/
-            debugger.updateModule(wasmFile)
+            allButtons.forEach { it.isEnabled = false }
+            progressBar.value = 0
+            progressBar.isVisible = true
+            thread {
+                try {
+                    debugger.reloadModule(wasmFile) { sent, total ->
+                        SwingUtilities.invokeLater { progressBar.value = (sent * 100 / maxOf(total, 1)).toInt() }
+                    }
+                } finally {
+                    SwingUtilities.invokeLater {
+                        progressBar.isVisible = false
+                        allButtons.forEach { it.isEnabled = true }
+                        updateEnabledButtons()
+                    }
+                }
+            }
+        }
+        timelineSlider.addChangeListener {
+            if (!updatingTimeline && !timelineSlider.valueIsAdjusting) {
+                seek(timelineSlider.value)
+            }
         }
         val toolBar = JToolBar()
         toolBar.isFloatable = true
@@ -335,6 +379,7 @@ class InteractiveDebugger(
         val splitPane = JSplitPane(JSplitPane.VERTICAL_SPLIT, horizontalSplitPane, JScrollPane(watchWindow))
         splitPane.resizeWeight = 0.8
         verticalPanel.add(splitPane, BorderLayout.CENTER)
+        verticalPanel.add(timelineSlider, BorderLayout.SOUTH)
         //verticalPanel.add(scrollPane, BorderLayout.CENTER)
 
         add(verticalPanel)
@@ -353,7 +398,11 @@ class InteractiveDebugger(
 
     init {
         debugger.startReading()
-        debugger.setSnapshotPolicy(Debugger.SnapshotPolicy.Checkpointing())
+        if (config.binarySnapshots) {
+            debugger.negotiateBinarySnapshots()
+        }
+        debugger.setSnapshotPolicy(config.checkpointOverhead?.let { Debugger.SnapshotPolicy.Adaptive(it / 100.0) }
+            ?: Debugger.SnapshotPolicy.Checkpointing())
         pause()
     }
 
@@ -368,14 +417,49 @@ class InteractiveDebugger(
     private fun updateEnabledButtons() {
         pausedOnlyButtons.forEach { it.isEnabled = paused }
         multiversePanel.isEnabled = paused
+        timelineSlider.isEnabled = paused
         if (paused) {
             updateStepBackButton()
         }
     }
 
     private fun updateStepBackButton() {
-        stepBackButton.isEnabled = debugger.checkpoints.size > 1
-        stepBackLineButton.isEnabled = debugger.checkpoints.size > 1
+        stepBackButton.isEnabled = debugger.time > 0
+        stepBackLineButton.isEnabled = debugger.time > 0
+        updateTimeline()
+    }
+
+    private fun updateTimeline() {
+        updatingTimeline = true
+        timelineSlider.maximum = maxOf(debugger.checkpoints.size - 1, 0)
+        timelineSlider.value = maxOf(debugger.time, 0)
+        timelineSlider.toolTipText = "Instruction ${timelineSlider.value} of ${timelineSlider.maximum}"
+        updatingTimeline = false
+    }
+
+    private fun seek(t: Int) {
+        if (seeking) {
+            pendingSeek = t
+            return
+        }
+        seeking = true
+        allButtons.forEach { it.isEnabled = false }
+        thread {
+            try {
+                debugger.seek(t)
+            } finally {
+                SwingUtilities.invokeLater {
+                    seeking = false
+                    allButtons.forEach { it.isEnabled = true }
+                    updateEnabledButtons()
+                    updatePcLabel()
+                    pendingSeek?.let {
+                        pendingSeek = null
+                        seek(it)
+                    }
+                }
+            }
+        }
     }
 
     private fun updatePcLabel() {
@@ -386,7 +470,7 @@ class InteractiveDebugger(
         }
 
         //val snapshot = debugger.currentSnapshot!!
-        val snapshot = debugger.checkpoints.last()!!.snapshot
+        val snapshot = debugger.currentCheckpoint()!!.snapshot
         //val snapshot = debugger.snapshotFull().second
         watchWindow.update(snapshot)
 
@@ -529,10 +613,8 @@ class MultiversePanel(private val multiverseDebugger: MultiverseDebugger, config
             customButton.isEnabled = false
             thread {
                 // Disable breakpoints
-                val breakpointsStart = multiverseDebugger.checkpoints.last()!!.snapshot.breakpoints!!
-                for (breakpoint in breakpointsStart) {
-                    multiverseDebugger.removeBreakpoint(breakpoint)
-                }
+                val breakpointsStart = multiverseDebugger.currentCheckpoint()!!.snapshot.breakpoints!!
+                multiverseDebugger.removeBreakpoints(breakpointsStart)
 
                 multiverseDebugger.printCheckpoints(multiverseDebugger.wasmBinary.metadata)
 
@@ -564,22 +646,23 @@ class MultiversePanel(private val multiverseDebugger: MultiverseDebugger, config
                     val lastAction = actionPath.last() as ContinueForAction
                     lastAction.n++
                 }
-                for (action in actionPath) {
-                    action.doAction()
-                    if (action is ContinueForAction) {
-                        finishedSteps += action.n
-                        stateChanged(multiverseDebugger.checkpoints.last(), finishedSteps / totalLength.toDouble())
-                        repeat(action.n) {
-                            graphPanel.completedPath.add(forwardPath.removeFirst())
+                // Overrides are sent together with the continue that follows them.
+                multiverseDebugger.batch {
+                    for (action in actionPath) {
+                        action.doAction()
+                        if (action is ContinueForAction) {
+                            finishedSteps += action.n
+                            stateChanged(multiverseDebugger.checkpoints.last(), finishedSteps / totalLength.toDouble())
+                            repeat(action.n) {
+                                graphPanel.completedPath.add(forwardPath.removeFirst())
+                            }
+                            graphPanel.repaint()
                         }
-                        graphPanel.repaint()
                     }
                 }
                 graphPanel.repaint()
                 // Re-enable breakpoints
-                for (breakpoint in breakpointsStart) {
-                    multiverseDebugger.addBreakpoint(breakpoint)
-                }
+                multiverseDebugger.addBreakpoints(breakpointsStart)
                 stateChanged(multiverseDebugger.checkpoints.last(), 1.0)
                 //debugger.continueFor(forwardPath.size - 1)
 
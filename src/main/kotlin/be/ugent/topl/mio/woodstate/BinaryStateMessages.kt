@@ -0,0 +1,131 @@
+package be.ugent.topl.mio.woodstate
+
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * Binary counterpart of [HexaStateMessages] for VMs that accept binary frames. Every frame carries the same data as a
+ * hexadecimal load snapshot message, but as raw bytes:
+ *
+ * | "66"    | Kind      | Length    | Payload size | Payload      | Done     | CRC32     |
+ * | 2 chars | 1 byte    | 4 bytes   | 4 bytes      | size bytes   | 1 byte   | 4 bytes   |
+ *
+ * Length is the amount of bytes from the payload size up to and including the done byte, the CRC32 is computed over
+ * those bytes. All integers are big endian.
+ *
+ * Modules are uploaded in frames of kind [KIND_UPDATE_MODULE] that carry consecutive parts of the module, the frame
+ * with the done byte set holds the last part.
+ */
+class BinaryStateMessages(private val maxFrameSize: Int = DEFAULT_FRAME_SIZE) : StateMessages {
+    private val maxPayloadSize = maxPayloadSize(maxFrameSize)
+    private val payloads = mutableListOf<ByteBuffer>()
+    private var current = ByteBuffer.allocate(maxPayloadSize)
+
+    init {
+        if (maxPayloadSize <= 0) {
+            throw Error("Frame size $maxFrameSize is too small")
+        }
+    }
+
+    override fun getFreeSpace(): Int {
+        return current.remaining() * 2
+    }
+
+    override fun howManyFit(headerSize: Int, payloads: List<String>, from: Int): Int {
+        val freeSpace = getFreeSpace()
+        var amount = 0
+        var length = headerSize
+        for (i in from ..< payloads.size) {
+            length += payloads[i].length
+            if (length > freeSpace) {
+                break
+            }
+            amount++
+        }
+        return amount
+    }
+
+    override fun addPayload(payload: String) {
+        if (payload.length % 2 != 0) {
+            throw Error("Payload is not even. Got length ${payload.length}")
+        }
+        makeRoom(payload.length / 2)
+        putHex(payload)
+    }
+
+    override fun addPayload(kind: String, header: IntArray, bytes: ByteArray, offset: Int, length: Int) {
+        makeRoom(kind.length / 2 + header.size * 4 + length)
+        putHex(kind)
+        for (value in header) {
+            HexaEncoder.putUInt(current, value, 4, true)
+        }
+        current.put(bytes, offset, length)
+    }
+
+    private fun makeRoom(size: Int) {
+        if (size > maxPayloadSize) {
+            throw Error("Payload size exceeds maxPayload Size of $maxPayloadSize bytes. Either increase maxFrameSize or split payload.")
+        }
+        if (current.remaining() < size) {
+            forceNewMessage()
+        }
+    }
+
+    private fun putHex(payload: String) {
+        for (i in payload.indices step 2) {
+            val high = Character.digit(payload[i], 16)
+            val low = Character.digit(payload[i + 1], 16)
+            if (high < 0 || low < 0) {
+                throw Error("Payload should only contain hexa chars")
+            }
+            current.put(((high shl 4) or low).toByte())
+        }
+    }
+
+    override fun forceNewMessage() {
+        payloads.add(current.flip())
+        current = ByteBuffer.allocate(maxPayloadSize)
+    }
+
+    fun getFrames(): List<ByteArray> {
+        if (current.position() != 0) {
+            forceNewMessage()
+        }
+        return payloads.mapIndexed { i, payload -> frame(KIND_LOAD_SNAPSHOT, payload, i == payloads.size - 1) }
+    }
+
+    companion object {
+        const val DEFAULT_FRAME_SIZE = 0x10000
+        private val FRAME_START = "66".toByteArray()
+        private const val KIND_LOAD_SNAPSHOT: Byte = 0x62
+        const val KIND_UPDATE_MODULE: Byte = 0x22
+
+        /**
+         * The largest payload that fits in a frame of [maxFrameSize] bytes.
+         */
+        fun maxPayloadSize(maxFrameSize: Int) = maxFrameSize - HEADER_SIZE - FOOTER_SIZE
+
+        /**
+         * Builds a frame of [kind] that carries the remaining bytes of [payload], [done] marks the last frame.
+         */
+        fun frame(kind: Byte, payload: ByteBuffer, done: Boolean): ByteArray {
+            val length = 4 + payload.remaining() + 1
+            val frame = ByteBuffer.allocate(HEADER_SIZE + payload.remaining() + FOOTER_SIZE)
+            frame.put(FRAME_START)
+            frame.put(kind)
+            frame.putInt(length)
+            val bodyStart = frame.position()
+            frame.putInt(payload.remaining())
+            frame.put(payload)
+            frame.put(if (done) 1 else 0)
+            val crc = CRC32()
+            crc.update(frame.array(), bodyStart, length)
+            frame.putInt(crc.value.toInt())
+            return frame.array()
+        }
+        // "66", kind, length and payload size.
+        private const val HEADER_SIZE = 2 + 1 + 4 + 4
+        // Done byte and CRC32.
+        private const val FOOTER_SIZE = 1 + 4
+    }
+}
@@ -1,9 +1,12 @@
 package be.ugent.topl.mio.woodstate
 
-import kotlin.streams.toList
+import java.nio.ByteBuffer
 
 class HexaEncoder {
     companion object {
+        private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+        private val HEX_DIGITS_UPPER = "0123456789ABCDEF".toCharArray()
+
         fun serializeBool(b: Boolean): String {
             return serializeUInt(if (b) 1 else 0, 1, true)
         }
@@ -37,28 +40,15 @@ class HexaEncoder {
         }
 
         fun serializeBigUInt64(n: Long, bigendian: Boolean): String {
-            val str = String.format("%016x", n)
-            return if (bigendian) str else hexStringBEToLE(str)
+            return appendBigUInt64(StringBuilder(16), n, bigendian).toString()
         }
 
         fun serializeUInt(n: Int, amountBytes: Int, bigendian: Boolean): String {
-            if (amountBytes < 1 || amountBytes > 4) {
-                throw Error("invalid amount of bytes")
-            }
-            // We have 4 bytes, our number is limited to amountBytes so we throw away the other bytes.
-            val shift = (4 - amountBytes) * 8
-            val nLimited = ((n shl shift) ushr shift)
-
-            val str = String.format("%0${amountBytes*2}x", nLimited)
-            if (!bigendian) {
-                return str.chunked(2).reversed().joinToString(separator = "")
-            }
-            return str
+            return appendUInt(StringBuilder(amountBytes * 2), n, amountBytes, bigendian).toString()
         }
 
         fun serializeInt32(n: Int, bigendian: Boolean): String {
-            val str = String.format("%08x", n)
-            return if (bigendian) str else hexStringBEToLE(str)
+            return appendUInt(StringBuilder(8), n, 4, bigendian).toString()
         }
 
         fun serializeFloatBE(n: Float): String {
@@ -88,26 +78,144 @@ class HexaEncoder {
         }
 
         fun serializeString(s: String): String {
-            return s.chars().toList().joinToString("") { c: Int -> String.format("%02x", c) }
+            return appendString(StringBuilder(s.length * 2), s).toString()
         }
 
         fun convertToLEB128(a: Int): String { // TODO can only handle 32 bit
-            var a = a or 0
-            val result = mutableListOf<String>()
+            return appendLEB128(StringBuilder(10), a).toString()
+        }
+
+        fun hexStringBEToLE(str: String): String = str.chunked(2).reversed().joinToString(separator = "")
+
+        /*
+         * The append functions below write the same hexadecimal text as the serialize functions above directly into
+         * a caller-supplied StringBuilder, so a complete message can be built without intermediate strings.
+         */
+
+        /**
+         * Appends the lowest byte of [b] as two hexadecimal digits.
+         */
+        fun appendByte(sb: StringBuilder, b: Int): StringBuilder {
+            return sb.append(HEX_DIGITS[(b shr 4) and 0xf]).append(HEX_DIGITS[b and 0xf])
+        }
+
+        /**
+         * Appends the lowest [amountBytes] bytes of [n], equivalent to [serializeUInt].
+         */
+        fun appendUInt(sb: StringBuilder, n: Int, amountBytes: Int, bigendian: Boolean): StringBuilder {
+            if (amountBytes < 1 || amountBytes > 4) {
+                throw Error("invalid amount of bytes")
+            }
+            for (i in 0 ..< amountBytes) {
+                val byte = if (bigendian) amountBytes - 1 - i else i
+                appendByte(sb, n ushr (byte * 8))
+            }
+            return sb
+        }
+
+        fun appendUInt8(sb: StringBuilder, n: Int) = appendUInt(sb, n, 1, true)
+
+        fun appendUInt32BE(sb: StringBuilder, n: Int) = appendUInt(sb, n, 4, true)
+
+        fun appendUInt32LE(sb: StringBuilder, n: Int) = appendUInt(sb, n, 4, false)
+
+        fun appendBigUInt64(sb: StringBuilder, n: Long, bigendian: Boolean): StringBuilder {
+            for (i in 0 ..< 8) {
+                val byte = if (bigendian) 7 - i else i
+                appendByte(sb, (n ushr (byte * 8)).toInt())
+            }
+            return sb
+        }
+
+        fun appendFloat(sb: StringBuilder, n: Float, bigendian: Boolean): StringBuilder {
+            return appendUInt(sb, java.lang.Float.floatToIntBits(n), 4, bigendian)
+        }
+
+        fun appendDouble(sb: StringBuilder, n: Double, bigendian: Boolean): StringBuilder {
+            return appendBigUInt64(sb, java.lang.Double.doubleToLongBits(n), bigendian)
+        }
+
+        /**
+         * Appends [length] bytes of [bytes] starting at [offset].
+         */
+        fun appendBytes(sb: StringBuilder, bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset): StringBuilder {
+            sb.ensureCapacity(sb.length + length * 2)
+            for (i in offset ..< offset + length) {
+                appendByte(sb, bytes[i].toInt())
+            }
+            return sb
+        }
+
+        /**
+         * Writes the next [length] bytes of [source] as hexadecimal ASCII characters to [destination], starting at
+         * [offset]. Returns the amount of characters written.
+         */
+        fun encodeHex(source: ByteBuffer, length: Int, destination: ByteArray, offset: Int = 0): Int {
+            var o = offset
+            repeat(length) {
+                val b = source.get().toInt()
+                destination[o++] = HEX_DIGITS[(b shr 4) and 0xf].code.toByte()
+                destination[o++] = HEX_DIGITS[b and 0xf].code.toByte()
+            }
+            return o - offset
+        }
+
+        /**
+         * Appends every character of [s] as (at least) two hexadecimal digits, equivalent to [serializeString].
+         */
+        fun appendString(sb: StringBuilder, s: String): StringBuilder {
+            for (c in s) {
+                if (c.code <= 0xff) {
+                    appendByte(sb, c.code)
+                } else {
+                    sb.append(Integer.toHexString(c.code))
+                }
+            }
+            return sb
+        }
+
+        /**
+         * Appends the signed LEB128 encoding of [a] in uppercase, equivalent to [convertToLEB128].
+         */
+        fun appendLEB128(sb: StringBuilder, a: Int): StringBuilder {
+            var a = a
             while (true) {
                 val byte_ = a and 0x7f
-                a  = a shr 7
-                if (
-                    (a == 0 && (byte_ and 0x40) == 0) ||
-                    (a == -1 && (byte_ and 0x40) != 0)
-                ) {
-                    result.add(byte_.toString(16).padStart(2, '0'))
-                    return result.joinToString("").uppercase()
+                a = a shr 7
+                val last = (a == 0 && (byte_ and 0x40) == 0) || (a == -1 && (byte_ and 0x40) != 0)
+                val b = if (last) byte_ else byte_ or 0x80
+                sb.append(HEX_DIGITS_UPPER[b shr 4]).append(HEX_DIGITS_UPPER[b and 0xf])
+                if (last) {
+                    return sb
                 }
-                result.add((byte_ or 0x80).toString(16).padStart(2, '0'))
             }
         }
 
-        fun hexStringBEToLE(str: String): String = str.chunked(2).reversed().joinToString(separator = "")
+        /*
+         * Binary counterparts, used when the bytes themselves are sent instead of their hexadecimal text.
+         */
+
+        fun putUInt(buffer: ByteBuffer, n: Int, amountBytes: Int, bigendian: Boolean): ByteBuffer {
+            if (amountBytes < 1 || amountBytes > 4) {
+                throw Error("invalid amount of bytes")
+            }
+            for (i in 0 ..< amountBytes) {
+                val byte = if (bigendian) amountBytes - 1 - i else i
+                buffer.put((n ushr (byte * 8)).toByte())
+            }
+            return buffer
+        }
+
+        fun putLEB128(buffer: ByteBuffer, a: Int): ByteBuffer {
+            var a = a
+            while (true) {
+                val byte_ = a and 0x7f
+                a = a shr 7
+                if ((a == 0 && (byte_ and 0x40) == 0) || (a == -1 && (byte_ and 0x40) != 0)) {
+                    return buffer.put(byte_.toByte())
+                }
+                buffer.put((byte_ or 0x80).toByte())
+            }
+        }
     }
 }
@@ -5,10 +5,10 @@ import kotlin.math.floor
 /**
  * Currently a direct port from WOODState.ts
  */
-class HexaStateMessages(val messageSize: Int) {
+class HexaStateMessages(val messageSize: Int) : StateMessages {
     private val maxMessageSize = messageSize
-    private var messages = mutableListOf<String>()
-    private var currentMsg = ""
+    private val messages = mutableListOf<String>()
+    private val currentMsg = StringBuilder()
 
     // Header data
     private val nrBytesForPayloadSize = 4 * 2 // tells how big the payload is. Times 2 for hexa
@@ -25,12 +25,12 @@ class HexaStateMessages(val messageSize: Int) {
         return this.getFreeSpace() >= spaceNeeded
     }
 
-    fun howManyFit(headerSize: Int, payloads: List<String>): Int {
+    override fun howManyFit(headerSize: Int, payloads: List<String>, from: Int): Int {
         var amount = 0
-        var payload: String = ""
-        for (element in payloads) {
-            payload += element
-            if (!this.enoughSpace(payload.length + headerSize)) {
+        var length = headerSize
+        for (i in from ..< payloads.size) {
+            length += payloads[i].length
+            if (!this.enoughSpace(length)) {
                 break
             }
             amount++
@@ -48,38 +48,34 @@ class HexaStateMessages(val messageSize: Int) {
         if (payload.length % 2 != 0) {
             throw Error("Payload is not even. Got length ${this.currentMsg.length}")
         }
-        val regexHexa = Regex("([0-9A-Fa-f]{2})*")
-        if (!regexHexa.matches(payload)) {
-            throw Error("Payload should only contain hexa chars")
-        }
     }
 
-    fun getFreeSpace(): Int {
+    override fun getFreeSpace(): Int {
         return this.maxPayloadSize - this.currentMsg.length
     }
 
-    fun addPayload(payload: String) {
+    override fun addPayload(payload: String) {
         this.validatePayload(payload)
         if (!this.enoughSpace(payload.length)) {
             this.forceNewMessage()
         }
-        this.currentMsg = "${this.currentMsg}${payload}"
+        // The payloads come from the encoders, checking every character is only done when assertions are enabled.
+        assert(payload.all { Character.digit(it, 16) >= 0 }) { "Payload should only contain hexa chars" }
+        this.currentMsg.append(payload)
         val s = this.currentMsg.length + this.headerSize + this.footerSize
         if (s > this.maxMessageSize) {
             throw Error("Exceeded max size is ${s} > ${this.maxMessageSize}")
         }
     }
 
-    fun forceNewMessage() {
-        this.messages.add(this.currentMsg)
-        this.currentMsg = ""
+    override fun forceNewMessage() {
+        this.messages.add(this.currentMsg.toString())
+        this.currentMsg.setLength(0)
     }
 
     fun getMessages(): List<String> {
-        if (this.currentMsg != "") {
-            this.messages = this.messages.toMutableList()
-            this.messages.add(this.currentMsg)
-            this.currentMsg = ""
+        if (this.currentMsg.isNotEmpty()) {
+            this.forceNewMessage()
         }
 
         val amountMessages = this.messages.size
@@ -88,7 +84,9 @@ class HexaStateMessages(val messageSize: Int) {
             val size = floor(payload.length / 2.0).toInt()
             val sizeHexa = HexaEncoder.serializeUInt32BE(size)
             val done = if ((msgIdx + 1) == amountMessages) "01" else "00"
-            val msg = "${InterruptTypes.interruptLoadSnapshot}${sizeHexa}${payload}${done}${lastChar}"
+            val msg = StringBuilder(this.headerSize + payload.length + this.footerSize)
+                .append(InterruptTypes.interruptLoadSnapshot).append(sizeHexa).append(payload).append(done).append(lastChar)
+                .toString()
             if (msg.length % 2 != 0) {
                 throw Error("WoodState: Hexa message not even")
             }
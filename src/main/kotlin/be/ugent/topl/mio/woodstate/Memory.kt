@@ -0,0 +1,186 @@
+package be.ugent.topl.mio.woodstate
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.JsonSerializer
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+import java.util.Arrays
+
+/**
+ * The linear memory of a snapshot.
+ *
+ * Consecutive checkpoints usually only differ in a few bytes of memory, so once a checkpoint is stored its memory is
+ * split in blocks of [BLOCK_SIZE] bytes with [shareBlocksWith]. Blocks that are the same as in the previous checkpoint
+ * are not copied, both checkpoints refer to the same array. The blocks are never modified after they are shared,
+ * accessing [bytes] copies them into a new array that from then on belongs to this snapshot alone.
+ */
+@JsonSerialize(using = MemorySerializer::class)
+class Memory(
+    val pages: Int,
+    val max: Int,
+    val init: Int,
+    @JsonDeserialize(using = RunLengthEncodingDeserializer::class)
+    bytes: ByteArray
+) {
+    private var content: ByteArray? = bytes
+    private var blocks: Array<ByteArray>? = null
+    private val length = bytes.size
+
+    /**
+     * The contents of the memory, the array can be modified. Prefer [toByteArray] when the contents are only read,
+     * it doesn't keep a full copy of the memory alive.
+     */
+    val bytes: ByteArray
+        @Synchronized get() {
+            val current = content
+            if (current != null) {
+                return current
+            }
+            val restored = toByteArray()
+            content = restored
+            blocks = null
+            return restored
+        }
+
+    /**
+     * Returns the contents of the memory without holding on to them.
+     */
+    @Synchronized
+    fun toByteArray(): ByteArray {
+        content?.let { return it }
+        val result = ByteArray(length)
+        var offset = 0
+        for (block in blocks!!) {
+            System.arraycopy(block, 0, result, offset, block.size)
+            offset += block.size
+        }
+        return result
+    }
+
+    fun size(): Int {
+        return length
+    }
+
+    /**
+     * Switches to block storage, reusing the blocks of [previous] that have the same contents.
+     */
+    @Synchronized
+    fun shareBlocksWith(previous: Memory?) {
+        val current = content ?: return
+        val previousBlocks = previous?.sharedBlocks()
+        val blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE
+        blocks = Array(blockCount) { i ->
+            val start = i * BLOCK_SIZE
+            val end = minOf(start + BLOCK_SIZE, length)
+            val previousBlock = previousBlocks?.getOrNull(i)
+            if (previousBlock != null && previousBlock.size == end - start &&
+                Arrays.equals(previousBlock, 0, previousBlock.size, current, start, end)) {
+                previousBlock
+            } else {
+                current.copyOfRange(start, end)
+            }
+        }
+        content = null
+    }
+
+    @Synchronized
+    private fun sharedBlocks(): Array<ByteArray>? {
+        return blocks
+    }
+
+    /**
+     * The number of bytes that are only referenced by this snapshot, compared to [previous].
+     */
+    @Synchronized
+    fun storedSize(previous: Memory?): Int {
+        content?.let { return it.size }
+        val previousBlocks = previous?.sharedBlocks()
+        return blocks!!.withIndex().sumOf { (i, block) -> if (previousBlocks?.getOrNull(i) === block) 0 else block.size }
+    }
+
+    /**
+     * Returns a copy of this memory that isn't affected by later changes to [bytes], it shares its blocks with this
+     * memory where possible.
+     */
+    fun copy(): Memory {
+        return Memory(pages, max, init, toByteArray()).apply { shareBlocksWith(this@Memory) }
+    }
+
+    /**
+     * Returns the ranges of bytes that differ from [other], ranges with at most [gap] equal bytes between them are
+     * merged. Returns null if the memories don't have the same size.
+     */
+    @Synchronized
+    fun changedRanges(other: Memory, gap: Int = 0): List<IntRange>? {
+        if (other.length != length || other.pages != pages) {
+            return null
+        }
+        val ranges = mutableListOf<IntRange>()
+        var rangeStart = -1
+        var rangeEnd = -1
+        val current = content
+        val otherContent: ByteArray?
+        val otherBlocks: Array<ByteArray>?
+        synchronized(other) {
+            otherContent = other.content
+            otherBlocks = other.blocks
+        }
+        for (i in 0 ..< (length + BLOCK_SIZE - 1) / BLOCK_SIZE) {
+            val start = i * BLOCK_SIZE
+            val end = minOf(start + BLOCK_SIZE, length)
+            val a = current ?: blocks!![i]
+            val aOffset = if (current != null) start else 0
+            val b = otherContent ?: otherBlocks!![i]
+            val bOffset = if (otherContent != null) start else 0
+            if (a === b && aOffset == bOffset) {
+                continue
+            }
+            var j = 0
+            while (j < end - start) {
+                val mismatch = Arrays.mismatch(a, aOffset + j, aOffset + end - start, b, bOffset + j, bOffset + end - start)
+                if (mismatch < 0) {
+                    break
+                }
+                val position = start + j + mismatch
+                if (rangeStart >= 0 && position - rangeEnd - 1 <= gap) {
+                    rangeEnd = position
+                } else {
+                    if (rangeStart >= 0) {
+                        ranges.add(rangeStart .. rangeEnd)
+                    }
+                    rangeStart = position
+                    rangeEnd = position
+                }
+                j += mismatch + 1
+            }
+        }
+        if (rangeStart >= 0) {
+            ranges.add(rangeStart .. rangeEnd)
+        }
+        return ranges
+    }
+
+    override fun toString(): String {
+        return "Memory(pages=$pages, max=$max, init=$init)"
+    }
+
+    companion object {
+        const val BLOCK_SIZE = 4096
+    }
+}
+
+/**
+ * Writes memory in the same format as the VM, without materialising the [Memory.bytes] of a stored checkpoint.
+ */
+class MemorySerializer : JsonSerializer<Memory>() {
+    override fun serialize(value: Memory, jsonGenerator: JsonGenerator, serializerProvider: SerializerProvider) {
+        jsonGenerator.writeStartObject()
+        jsonGenerator.writeNumberField("pages", value.pages)
+        jsonGenerator.writeNumberField("max", value.max)
+        jsonGenerator.writeNumberField("init", value.init)
+        jsonGenerator.writeFieldName("bytes")
+        RunLengthEncodingSerializer().serialize(value.toByteArray(), jsonGenerator, serializerProvider)
+        jsonGenerator.writeEndObject()
+    }
+}
@@ -1,69 +1,60 @@
 package be.ugent.topl.mio.woodstate
 
-private fun getByteFromString(byteString: String, i: Int): String {
-    return byteString.slice(i*2..< i*2 + 2)
-}
-
-fun compressRLE(byteString: List<String>, sizeLimit: Int): Pair<List<String>, Int> {
-    var result = ""
-    var count = 0
-    var currentByte = byteString[0]
+import be.ugent.topl.mio.Trace
+import java.nio.ByteBuffer
+import java.util.HexFormat
 
-    var i = 0
-    while (
-        i < byteString.size &&
-        result.length + (HexaEncoder.convertToLEB128(count) + currentByte).length + 4 <= sizeLimit // + 4 for HexaEncoder.convertToLEB128(1) + currentByte
-    ) {
-        if (byteString[i] == currentByte) {
-            count++
-        } else {
-            result += HexaEncoder.convertToLEB128(count) + currentByte
-            //println("$count x $currentByte")
-            currentByte = byteString[i]
-            count = 1
+/**
+ * Run-length encodes the bytes of [bytes] from [offset] until [end] as (LEB128 count, byte) pairs into [output], until
+ * all bytes are encoded or [output] is full. A run that does not fit in the remaining space is split, the part that
+ * fits is encoded and the rest is left for the next call.
+ *
+ * @return the number of input bytes that were encoded
+ */
+fun compressRLE(bytes: ByteArray, offset: Int, end: Int, output: ByteBuffer): Int {
+    var i = offset
+    while (i < end) {
+        // One byte is needed for the value itself.
+        val countSpace = output.remaining() - 1
+        if (countSpace < 1) {
+            break
+        }
+        val b = bytes[i]
+        var run = 1
+        while (i + run < end && bytes[i + run] == b) {
+            run++
         }
-        i++
+        run = minOf(run, maxLEB128(countSpace))
+        HexaEncoder.putLEB128(output, run)
+        output.put(b)
+        i += run
     }
+    return i - offset
+}
+
+/**
+ * The largest positive number that fits in a signed LEB128 encoding of [size] bytes.
+ */
+private fun maxLEB128(size: Int): Int = if (size >= 5) Int.MAX_VALUE else (1 shl (7 * size - 1)) - 1
+
+private fun compressRLE(bytes: ByteArray, outputSize: Int): Pair<ByteArray, Int> {
+    val output = ByteBuffer.allocate(outputSize)
+    val consumed = compressRLE(bytes, 0, bytes.size, output)
+    return Pair(output.array().copyOf(output.position()), consumed)
+}
 
-    result += HexaEncoder.convertToLEB128(count) + currentByte
-    println("Compressed result size = ${result.length}")
-    return Pair(result.chunked(2), i)
+fun compressRLE(byteString: List<String>, sizeLimit: Int): Pair<List<String>, Int> {
+    val bytes = HexFormat.of().parseHex(byteString.joinToString(""))
+    val (result, consumed) = compressRLE(bytes, sizeLimit / 2)
+    Trace.trace { "Compressed result size = ${result.size * 2}" }
+    return Pair(result.map { HexFormat.of().toHexDigits(it) }, consumed)
 }
 
 fun compressRLE(byteString: List<String>): List<String> {
-    var result = ""
-    var count = 0
-    var currentByte = byteString[0]
-    for (i in byteString.indices) {
-        if (byteString[i] == currentByte) {
-            count++
-        } else {
-            result += HexaEncoder.convertToLEB128(count) + currentByte
-            //println("$count x $currentByte")
-            currentByte = byteString[i]
-            count = 1
-        }
-    }
-    //println("$count x $currentByte")
-    result += HexaEncoder.convertToLEB128(count) + currentByte
-    return result.chunked(2)
+    return compressRLE(byteString, byteString.size * 4 + 12).first
 }
 
 fun compressRLE(byteString: String): String {
-    var result = ""
-    var count = 0
-    var currentByte = getByteFromString(byteString, 0)
-    for (i in 0 ..< byteString.length/2) {
-        if (getByteFromString(byteString, i) == currentByte) {
-            count++
-        } else {
-            result += HexaEncoder.convertToLEB128(count) + currentByte
-            //println("$count x $currentByte")
-            currentByte = getByteFromString(byteString, i)
-            count = 1
-        }
-    }
-    //println("$count x $currentByte")
-    result += HexaEncoder.convertToLEB128(count) + currentByte
-    return result
-}
\ No newline at end of file
+    val bytes = HexFormat.of().parseHex(byteString)
+    return HexFormat.of().formatHex(compressRLE(bytes, bytes.size * 2 + 6).first)
+}
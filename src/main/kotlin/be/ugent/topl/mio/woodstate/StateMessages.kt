@@ -0,0 +1,31 @@
+package be.ugent.topl.mio.woodstate
+
+/**
+ * Packs the payloads of a snapshot into the messages that are sent to the VM. Payloads and sizes are expressed in
+ * hexadecimal characters, two per byte, regardless of how the messages are encoded on the wire.
+ */
+interface StateMessages {
+    fun getFreeSpace(): Int
+
+    /**
+     * The amount of payloads, starting at index [from], that fit in the current message after a header of
+     * [headerSize].
+     */
+    fun howManyFit(headerSize: Int, payloads: List<String>, from: Int = 0): Int
+    fun addPayload(payload: String)
+
+    /**
+     * Adds a payload of [kind], the [header] values as big endian 32-bit integers and [length] bytes of [bytes] starting
+     * at [offset]. Used for the memory, the largest section, so its bytes don't have to be turned into hexadecimal
+     * characters when the messages are binary.
+     */
+    fun addPayload(kind: String, header: IntArray, bytes: ByteArray, offset: Int, length: Int) {
+        val payload = StringBuilder(kind.length + header.size * 8 + length * 2).append(kind)
+        for (value in header) {
+            HexaEncoder.appendUInt32BE(payload, value)
+        }
+        addPayload(HexaEncoder.appendBytes(payload, bytes, offset, length).toString())
+    }
+
+    fun forceNewMessage()
+}
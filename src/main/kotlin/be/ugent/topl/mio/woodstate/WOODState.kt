@@ -1,15 +1,22 @@
 package be.ugent.topl.mio.woodstate
 
 import WasmInfo
+import be.ugent.topl.mio.Json
+import be.ugent.topl.mio.Trace
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationContext
 import com.fasterxml.jackson.databind.JsonDeserializer
-import com.fasterxml.jackson.databind.JsonNode
-import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.JsonSerializer
+import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize
-import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ForkJoinPool
 import java.util.*
 
 
@@ -82,12 +89,22 @@ data class Table(
 class RunLengthEncodingDeserializer : JsonDeserializer<ByteArray>() {
     @Throws(IOException::class, JsonProcessingException::class)
     override fun deserialize(jsonParser: JsonParser, deserializationContext: DeserializationContext): ByteArray {
+        // Read the [data, count, data, count, ...] pairs straight from the token stream instead of building a tree.
+        if (!jsonParser.isExpectedStartArrayToken) {
+            return deserializationContext.handleUnexpectedToken(ByteArray::class.java, jsonParser) as ByteArray
+        }
+        var runs = IntArray(64)
+        var runsLength = 0
         var totalCount = 0
-        val node: JsonNode = jsonParser.codec.readTree(jsonParser)
-        val list = node.toList().map { it.asInt() }
-
-        for (i in list.indices step 2) {
-            totalCount += list[i + 1]
+        while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+            if (runsLength == runs.size) {
+                runs = runs.copyOf(runs.size * 2)
+            }
+            runs[runsLength] = jsonParser.intValue
+            if (runsLength % 2 == 1) {
+                totalCount += runs[runsLength]
+            }
+            runsLength++
         }
         assert(0 == totalCount % 0x10000) {
             System.err.println("Amount of bytes should be a multiple of the WebAssembly page size. Reconstructed count = $totalCount.")
@@ -95,25 +112,36 @@ class RunLengthEncodingDeserializer : JsonDeserializer<ByteArray>() {
 
         val bytes = ByteArray(totalCount)
         var currentByteArrayIndex = 0
-        for (i in list.indices step 2) {
-            val data = list[i]
-            val count = list[i + 1]
-            for (y in 0 until count) {
-                bytes[currentByteArrayIndex] = data.toByte()
-                currentByteArrayIndex++
-            }
+        for (i in 0 ..< runsLength step 2) {
+            val data = runs[i].toByte()
+            val count = runs[i + 1]
+            bytes.fill(data, currentByteArrayIndex, currentByteArrayIndex + count)
+            currentByteArrayIndex += count
         }
         return bytes
     }
 }
 
-data class Memory(
-    val pages: Int,
-    val max: Int,
-    val init: Int,
-    @JsonDeserialize(using = RunLengthEncodingDeserializer::class)
-    val bytes: ByteArray
-)
+/**
+ * Writes the [data, count, data, count, ...] pairs read by [RunLengthEncodingDeserializer].
+ */
+class RunLengthEncodingSerializer : JsonSerializer<ByteArray>() {
+    override fun serialize(value: ByteArray, jsonGenerator: JsonGenerator, serializerProvider: SerializerProvider) {
+        jsonGenerator.writeStartArray()
+        var i = 0
+        while (i < value.size) {
+            val data = value[i]
+            var end = i + 1
+            while (end < value.size && value[end] == data) {
+                end++
+            }
+            jsonGenerator.writeNumber(data.toInt() and 0xff)
+            jsonGenerator.writeNumber(end - i)
+            i = end
+        }
+        jsonGenerator.writeEndArray()
+    }
+}
 
 data class BRTable(
     val size: String,
@@ -159,7 +187,11 @@ data class Checkpoint(
     val snapshot: WOODDumpResponse
 )
 
-class WOODState(woodResponse: WOODDumpResponse) {
+/**
+ * Serializes a snapshot to the messages that restore it on the VM. When [currentMemory] is the memory the VM has at the
+ * moment, only the ranges of memory that differ from it are sent, the VM keeps the rest.
+ */
+class WOODState(woodResponse: WOODDumpResponse, private val currentMemory: Memory? = null) {
     private val unparsedJSON = ""
     public val callbacks = ""
     private val woodResponse: WOODDumpResponse = woodResponse
@@ -170,6 +202,22 @@ class WOODState(woodResponse: WOODDumpResponse) {
 
     fun toBinary(maxInterruptSize: Int = 4000, io: Boolean=true, overrides: Boolean=true): List<String> {
         val stateMessages = HexaStateMessages(maxInterruptSize)
+        serialize(stateMessages, io, overrides)
+        return stateMessages.getMessages()
+    }
+
+    /**
+     * Serializes the state as binary frames (see [BinaryStateMessages]), only for VMs that support binary transfer.
+     */
+    fun toFrames(maxFrameSize: Int = BinaryStateMessages.DEFAULT_FRAME_SIZE, io: Boolean=true, overrides: Boolean=true): List<ByteArray> {
+        val stateMessages = BinaryStateMessages(maxFrameSize)
+        serialize(stateMessages, io, overrides)
+        return stateMessages.getFrames()
+    }
+
+    private fun serialize(stateMessages: StateMessages, io: Boolean, overrides: Boolean) {
+        // Encoding the elements of the sections is independent, only packing them into messages has to happen in order.
+        val sections = EncodedSections()
 
         // Allocation Message
         this.serialiseAllocationMessage(stateMessages)
@@ -178,290 +226,307 @@ class WOODState(woodResponse: WOODDumpResponse) {
         // State Messages
         serializePC(stateMessages)
         serializeException(stateMessages)
-        serializeBPs(stateMessages)
-        serializeStack(stateMessages)
-        serializeTable(stateMessages)
-        serializeCallstack(stateMessages)
-        serializeGlobals(stateMessages)
-        serializeCallbacksMapping(stateMessages)
-        serializeMemory(stateMessages)
-        serializeBrTable(stateMessages)
+        serializeBPs(stateMessages, sections.breakpoints.await())
+        serializeStack(stateMessages, sections.stack.await())
+        serializeTable(stateMessages, sections.table.await())
+        serializeCallstack(stateMessages, sections.callstack.await())
+        serializeGlobals(stateMessages, sections.globals.await())
+        serializeCallbacksMapping(stateMessages, sections.callbacks.await())
+        serializeMemory(stateMessages, sections.memory.await())
+        serializeBrTable(stateMessages, sections.brTable.await())
         if (io) serializeIO(stateMessages)
         if (overrides) serializeOverrides(stateMessages)
+    }
 
-        return stateMessages.getMessages()
+    /**
+     * The encoded elements of the sections of the snapshot. Sections with at least [PARALLEL_CHUNK] elements are
+     * encoded in chunks on the common fork join pool, smaller ones right away. Without a pool of multiple threads
+     * everything is encoded right away.
+     */
+    private inner class EncodedSections {
+        private val parallel = ForkJoinPool.getCommonPoolParallelism() > 1
+
+        val breakpoints = encode(woodResponse.breakpoints) { serializePointer(it) }
+        val stack = encode(woodResponse.stack) { serializeValue(it) }
+        val table = encode(woodResponse.table?.elements) { HexaEncoder.serializeUInt32BE(it) }
+        val callstack = encode(woodResponse.callstack) { serializeFrame(it) }
+        val globals = encode(woodResponse.globals) { serializeValue(it) }
+        val callbacks = encode(woodResponse.callbacks) { serializeCallbackMapping(it) }
+        val brTable = encode(woodResponse.br_table?.labels) { HexaEncoder.serializeUInt32BE(it) }
+        // The contents of the memory and the ranges that have to be sent. The memory is compressed while packing, as
+        // the size of the chunks depends on the free space in the messages.
+        val memory: CompletableFuture<Pair<ByteArray, List<IntRange>>?> = woodResponse.memory.let { memory ->
+            val prepare = {
+                memory?.let {
+                    val ranges = currentMemory?.let { current -> it.changedRanges(current, MEMORY_RANGE_GAP) }
+                    Pair(it.toByteArray(), ranges ?: listOf(0 ..< it.size()))
+                }
+            }
+            if (parallel && memory != null && memory.size() >= PARALLEL_CHUNK * 64) CompletableFuture.supplyAsync(prepare) else CompletableFuture.completedFuture(prepare())
+        }
+
+        private fun <T> encode(elements: List<T>?, encodeElement: (T) -> String): CompletableFuture<List<String>?> {
+            if (!parallel || elements == null || elements.size < PARALLEL_CHUNK) {
+                return CompletableFuture.completedFuture(elements?.map(encodeElement))
+            }
+            val chunks = (elements.indices step PARALLEL_CHUNK).map { start ->
+                CompletableFuture.supplyAsync {
+                    elements.subList(start, minOf(start + PARALLEL_CHUNK, elements.size)).map(encodeElement)
+                }
+            }
+            return CompletableFuture.allOf(*chunks.toTypedArray()).thenApply { chunks.flatMap { it.join() } }
+        }
+    }
+
+    private fun <T> CompletableFuture<T>.await(): T {
+        try {
+            return join()
+        } catch (e: CompletionException) {
+            // Rethrow the errors of the serializers as if they were called directly.
+            throw e.cause ?: e
+        }
     }
 
     // Helper methods
 
-    private fun serializeBPs(stateMsgs: HexaStateMessages) {
+    private fun traceSection(name: String) {
+        Trace.debug { "==============\n$name\n--------------" }
+    }
+
+    private fun serializeBPs(stateMsgs: StateMessages, breakpoints: List<String>?) {
         // |      Header       |        Breakpoints
         // | BPState  | Nr BPS |     BP1          | BP2 | ...
         // |  2 bytes |   1*2  | serializePointer |
-        val bps = this.woodResponse.breakpoints
-        if (bps == null) {
+        if (breakpoints == null) {
             return
         }
-        println("==============")
-        println("Breakpoints")
-        println("--------------")
-        val ws = this
+        traceSection("Breakpoints")
         val nrBytesUsedForAmountBPs = 1 * 2
         val headerSize = ExecutionStateType.breakpointState.hexStr.length + nrBytesUsedForAmountBPs
-        var breakpoints = bps.map{ bp -> ws.serializePointer(bp) }
-        while (breakpoints.size != 0) {
-            val fits = stateMsgs.howManyFit(headerSize, breakpoints)
+        var start = 0
+        while (start < breakpoints.size) {
+            val fits = stateMsgs.howManyFit(headerSize, breakpoints, start)
             if (fits == 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
-            val bps = breakpoints.slice(0 ..< fits).joinToString("")
+            val bps = breakpoints.subList(start, start + fits).joinToString("")
             val amountBPs = HexaEncoder.serializeUInt8(fits)
-            println("Breakpoints: amount=${breakpoints.size}")
+            Trace.debug { "Breakpoints: amount=${breakpoints.size - start}" }
             val payload = "${ExecutionStateType.breakpointState}${amountBPs}${bps}"
             stateMsgs.addPayload(payload)
-            breakpoints = breakpoints.slice(fits ..< breakpoints.size)
+            start += fits
         }
     }
 
-    private fun serializeStack(stateMsgs: HexaStateMessages) {
+    private fun serializeStack(stateMsgs: StateMessages, stack: List<String>?) {
         // |          Header           |       StackValues
         // | StackState | Nr StackVals |     V1         | V2 | ...
         // |  2 bytes   |      2*2     | serializeValue |
-        if (this.woodResponse.stack == null) {
+        if (this.woodResponse.stack == null || stack == null) {
             return
         }
-        println("==============")
-        println("STACK")
-        println("--------------")
-        println("Total Stack length ${this.woodResponse.stack.size}")
+        traceSection("STACK")
+        Trace.debug { "Total Stack length ${this.woodResponse.stack.size}" }
 
-        val ws = this
-        var stack = this.woodResponse.stack.map{ v -> serializeValue(v) }
         val nrBytesUsedForAmountVals = 2 * 2
         val headerSize = ExecutionStateType.stackState.length + nrBytesUsedForAmountVals
-        while (stack.size != 0) {
-            val fit = stateMsgs.howManyFit(headerSize, stack)
+        var start = 0
+        while (start < stack.size) {
+            val fit = stateMsgs.howManyFit(headerSize, stack, start)
             if (fit == 0) {
                 stateMsgs.forceNewMessage()
             }
             val amountVals = HexaEncoder.serializeUInt16BE(fit)
-            val vals = stack.slice(0 ..< fit).joinToString("")
+            val vals = stack.subList(start, start + fit).joinToString("")
             val payload = "${ExecutionStateType.stackState}${amountVals}${vals}"
             stateMsgs.addPayload(payload)
-            stack = stack.slice(fit ..< stack.size)
-            println("msg: AmountStackValues ${fit}")
+            start += fit
+            Trace.debug { "msg: AmountStackValues ${fit}" }
         }
     }
 
-    private fun serializeTable(stateMsgs: HexaStateMessages) {
+    private fun serializeTable(stateMsgs: StateMessages, elements: List<String>?) {
         // |          Header          |       Elements
         // | TableState | Nr Elements |    elem  1  | elem 2 | ...
         // |  2 bytes   |   4*2       |  4*2 bytes  |
-        if (this.woodResponse.table == null) {
+        if (this.woodResponse.table == null || elements == null) {
             return
         }
-        println("==============")
-        println("TABLE")
-        println("--------------")
-        var elements = this.woodResponse.table.elements.map{ HexaEncoder.serializeUInt32BE(it) }
-        println("Total Elements ${this.woodResponse.table.elements.size}")
+        traceSection("TABLE")
+        Trace.debug { "Total Elements ${this.woodResponse.table.elements.size}" }
         val nrBytesUsedForAmountElements = 4 * 2
         val headerSize = ExecutionStateType.tableState.length + nrBytesUsedForAmountElements
-        while (elements.size != 0) {
-            val fit = stateMsgs.howManyFit(headerSize, elements)
+        var start = 0
+        while (start < elements.size) {
+            val fit = stateMsgs.howManyFit(headerSize, elements, start)
             if (fit === 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
             val amountElements = HexaEncoder.serializeUInt32BE(fit)
-            val elems = elements.slice(0 ..< fit).joinToString("")
-            val el_str = this.woodResponse.table.elements .slice(0 ..< fit).map{ e -> e.toString() }.joinToString(", ")
-            println("msg: amountElements ${fit} elements ${el_str}")
+            val elems = elements.subList(start, start + fit).joinToString("")
+            Trace.trace { "msg: amountElements ${fit} elements ${this.woodResponse.table.elements.subList(start, start + fit).joinToString(", ")}" }
             val payload = "${ExecutionStateType.tableState}${amountElements}${elems}"
             stateMsgs.addPayload(payload)
-            elements = elements .slice(fit ..< elements.size)
+            start += fit
         }
     }
 
-    private fun serializeCallstack(stateMsgs: HexaStateMessages) {
+    private fun serializeCallstack(stateMsgs: StateMessages, frames: List<String>?) {
         // |           Header           |              Frames
         // | CallstackState | Nr Frames |   Frame 1      | Frame 2 | ...
         // |    2 bytes     |  2*2bytes | serializeFrame |
-        if (this.woodResponse.callstack == null) {
+        if (this.woodResponse.callstack == null || frames == null) {
             return
         }
-        println("==============")
-        println("CallStack")
-        println("--------------")
-        println("Total Frames ${this.woodResponse.callstack.size}")
+        traceSection("CallStack")
+        Trace.debug { "Total Frames ${this.woodResponse.callstack.size}" }
 
-        var frames = this.woodResponse.callstack.map{ f -> serializeFrame(f) }
         val nrBytesUsedForAmountFrames = 2 * 2
         val headerSize = ExecutionStateType.callstackState.length + nrBytesUsedForAmountFrames
-        while (frames.isNotEmpty()) {
-            val fit = stateMsgs.howManyFit(headerSize, frames)
+        var start = 0
+        while (start < frames.size) {
+            val fit = stateMsgs.howManyFit(headerSize, frames, start)
             if (fit == 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
             val amountFrames = HexaEncoder.serializeUInt16BE(fit)
-            val fms = frames.slice(0 ..< fit).joinToString("")
-            println("msg: amountFrames=${fit}")
+            val fms = frames.subList(start, start + fit).joinToString("")
+            Trace.debug { "msg: amountFrames=${fit}" }
             val payload = "${ExecutionStateType.callstackState}${amountFrames}${fms}"
             stateMsgs.addPayload(payload)
-            frames = frames .slice(fit ..< frames.size)
+            start += fit
         }
     }
 
-    private fun serializeGlobals(stateMsgs: HexaStateMessages) {
+    private fun serializeGlobals(stateMsgs: StateMessages, globals: List<String>?) {
         // |        Header          |       Globals
         // | GlobalState |  Nr Vals |     V1         | V2 | ...
         // |  2 bytes    | 4*2bytes | serializeValue |
-        if (this.woodResponse.globals == null) {
+        if (this.woodResponse.globals == null || globals == null) {
             return
         }
-        println("==============")
-        println("GLOBALS")
-        println("--------------")
+        traceSection("GLOBALS")
 
-        println("Total Globals ${this.woodResponse.globals.size}")
-        val ws = this
-        var globals = this.woodResponse.globals.map{ v -> serializeValue(v) }
+        Trace.debug { "Total Globals ${this.woodResponse.globals.size}" }
         val nrBytesNeededForAmountGlbs = 4 * 2
         val headerSize = ExecutionStateType.globalsState.length + nrBytesNeededForAmountGlbs
-        while (globals.size != 0) {
-            val fit = stateMsgs.howManyFit(headerSize, globals)
+        var start = 0
+        while (start < globals.size) {
+            val fit = stateMsgs.howManyFit(headerSize, globals, start)
             if (fit === 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
             val amountGlobals = HexaEncoder.serializeUInt32BE(fit)
-            val glbs = globals .slice(0 ..< fit).joinToString("")
+            val glbs = globals.subList(start, start + fit).joinToString("")
             val payload = "${ExecutionStateType.globalsState}${amountGlobals}${glbs}"
             stateMsgs.addPayload(payload)
-            globals = globals .slice(fit ..< globals.size)
-            println("msg: AmountGlobals ${fit}")
+            start += fit
+            Trace.debug { "msg: AmountGlobals ${fit}" }
         }
     }
 
-    private fun serializeMemory(stateMsgs: HexaStateMessages) {
+    private fun serializeMemory(stateMsgs: StateMessages, contents: Pair<ByteArray, List<IntRange>>?) {
         // |        Header                          | Memory Bytes
         // | MemState | Mem Start Idx | Mem End Idx |  byte 1   | byte 2|
         // |  2 bytes |    4*2 bytes  |  4*2 bytes  | 1*2 bytes | ....
-        if (this.woodResponse.memory == null) {
+        if (this.woodResponse.memory == null || contents == null) {
             return
         }
-        println("==============")
-        println("Memory")
-        println("--------------")
+        traceSection("Memory")
         val sizeHeader = ExecutionStateType.memState.length + 4 * 2 + 4 * 2 + 4 * 2
-        /*val testArray = ByteArray(65536 / 2)
-        Random(42).nextBytes(testArray)
-        var bytes = testArray.map{ b -> HexFormat.of().formatHex(byteArrayOf(b)) }*/
-        var bytes = this.woodResponse.memory.bytes.map{ b -> HexFormat.of().formatHex(byteArrayOf(b)) }
-        println("Total Memory Bytes ${this.woodResponse.memory.bytes.size}")
-        var startMemIdx = 0
-        var endMemIdx = 0
-        while (bytes.isNotEmpty()) {
-            // Step 1. Check how much space we still have.
-            val freeSpace = stateMsgs.getFreeSpace() - sizeHeader
-            println("Free space = $freeSpace")
-            // Step 2. Compress the remaining bytes so that the compressed output is at most length freeSpace
-            val (compressed, consumed) = compressRLE(bytes, freeSpace)
-            println("Compressed = ${compressed.size}, consumed = $consumed")
-
-            compressed.forEach {
-                if (it.length != 2) throw Exception()
-            }
-            println(stateMsgs.howManyFit(sizeHeader, compressed))
-            if (stateMsgs.howManyFit(sizeHeader, compressed) != compressed.size) {
-                throw Exception("Invalid")
-            }
-
-            endMemIdx = startMemIdx + consumed - 1 // End is inclusive
-            val bytesHexa = compressed.joinToString("")
-            val startMemIdxHexa = HexaEncoder.serializeUInt32BE(startMemIdx)
-            val endMemIdxHexa = HexaEncoder.serializeUInt32BE(endMemIdx)
-            val count = HexaEncoder.serializeUInt32BE(bytesHexa.length/2)
-            val payload = "${ExecutionStateType.memState}${startMemIdxHexa}${endMemIdxHexa}${count}${bytesHexa}"
-            println("Start position = $startMemIdx $startMemIdxHexa ${startMemIdx + consumed - 1} $endMemIdxHexa")
-            println("Bytes payload: $payload")
-            stateMsgs.addPayload(payload)
-            startMemIdx = endMemIdx + 1
-
-            bytes = bytes.slice(consumed ..< bytes.size)
-
-            if (bytes.isNotEmpty()) {
-                stateMsgs.forceNewMessage() // TODO: What if we are out of bytes, then we should probably not make a new message, this is not really ideal with this bein the same as the while loop condition
+        val memory = this.woodResponse.memory
+        val (bytes, ranges) = contents
+        Trace.debug { "Total Memory Bytes ${memory.size()}" }
+        if (currentMemory != null) {
+            Trace.debug { "Changed memory ranges: ${ranges.size} (${ranges.sumOf { it.last - it.first + 1 }} bytes)" }
+        }
+        for (range in ranges) {
+            var startMemIdx = range.first
+            while (startMemIdx <= range.last) {
+                // Step 1. Check how much space we still have.
+                val freeSpace = stateMsgs.getFreeSpace() - sizeHeader
+                Trace.trace { "Free space = $freeSpace" }
+                // Step 2. Compress the remaining bytes so that the compressed output is at most length freeSpace
+                val compressed = ByteBuffer.allocate(maxOf(freeSpace / 2, 0))
+                val consumed = compressRLE(bytes, startMemIdx, range.last + 1, compressed)
+                Trace.trace { "Compressed = ${compressed.position()}, consumed = $consumed" }
+                if (consumed == 0) {
+                    stateMsgs.forceNewMessage()
+                    continue
+                }
+
+                val endMemIdx = startMemIdx + consumed - 1 // End is inclusive
+                val header = intArrayOf(startMemIdx, endMemIdx, compressed.position())
+                Trace.trace { "Start position = $startMemIdx $endMemIdx" }
+                stateMsgs.addPayload(ExecutionStateType.memState.hexStr, header, compressed.array(), 0, compressed.position())
+                startMemIdx = endMemIdx + 1
+
+                if (startMemIdx <= range.last) {
+                    stateMsgs.forceNewMessage() // The message is full.
+                }
             }
         }
     }
 
-    private fun serializeBrTable(stateMsgs: HexaStateMessages) {
+    private fun serializeBrTable(stateMsgs: StateMessages, elements: List<String>?) {
         // |                    Header           |        Labels
         // | BR_TblState |  StartIdx |  EndIdx   | label 1   | label 2|
         // |  2 bytes    | 2*2 bytes | 2*2 bytes | 4*2 bytes | ....
-        if (this.woodResponse.br_table == null) {
+        if (this.woodResponse.br_table == null || elements == null) {
             return
         }
-        println("==============")
-        println("BRTable")
-        println("--------------")
-        println("Total Labels ${this.woodResponse.br_table.labels.size}")
+        traceSection("BRTable")
+        Trace.debug { "Total Labels ${this.woodResponse.br_table.labels.size}" }
 
-        var elements = this.woodResponse.br_table.labels.map{ HexaEncoder.serializeUInt32BE(it) }
         val sizeHeader = ExecutionStateType.branchingTableState.length + 2 * 2 + 2 * 2
         var startTblIdx = 0
         var endTblIdx = 0
         while (startTblIdx < this.woodResponse.br_table.labels.size) {
-            var fit = stateMsgs.howManyFit(sizeHeader, elements)
+            val fit = stateMsgs.howManyFit(sizeHeader, elements, startTblIdx)
             if (fit === 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
             endTblIdx = startTblIdx + fit - 1
-            val elems = elements .slice(0 ..< fit).joinToString("")
+            val elems = elements.subList(startTblIdx, startTblIdx + fit).joinToString("")
             val startTblIdxHexa = HexaEncoder.serializeUInt16BE(startTblIdx)
             val endTblIdxHexa = HexaEncoder.serializeUInt16BE(endTblIdx)
             val payload = "${ExecutionStateType.branchingTableState}${startTblIdxHexa}${endTblIdxHexa}${elems}"
             stateMsgs.addPayload(payload)
-            println("msg: startTblIdx=${startTblIdx} endTblIdx=${endTblIdx}")
+            Trace.debug { "msg: startTblIdx=${startTblIdx} endTblIdx=${endTblIdx}" }
             startTblIdx = endTblIdx + 1
-
-            elements = elements .slice(fit ..< elements.size)
         }
     }
 
-    private fun serializePC(stateMsgs: HexaStateMessages) {
+    private fun serializePC(stateMsgs: StateMessages) {
         // |  PCState Header | PC
         // |     2 bytes     | serializePointer
         if (this.woodResponse.pc == null) {
             return
         }
-        println("==========")
-        println("PC")
-        println("----------")
+        traceSection("PC")
         val ser = this.serializePointer(this.woodResponse.pc)
-        println("PC: pc=${this.woodResponse.pc}")
+        Trace.debug { "PC: pc=${this.woodResponse.pc}" }
         val payload = "${ExecutionStateType.pcState}${ser}"
         stateMsgs.addPayload(payload)
     }
 
-    private fun serialiseAllocationMessage(stateMsgs: HexaStateMessages) {
+    private fun serialiseAllocationMessage(stateMsgs: StateMessages) {
         val wr = this.woodResponse
         if (wr.globals == null || wr.table == null || wr.memory == null) {
             throw Error("cannot serialise Allocaton Message when state is missing")
         }
 
-        println("==============")
-        println("Allocate MSG")
-        println("--------------")
+        traceSection("Allocate MSG")
 
         // Globals
 
         val gblsAmountHex = HexaEncoder.serializeUInt32BE(wr.globals.size)
-        println("Globals: total=${wr.globals.size}")
+        Trace.debug { "Globals: total=${wr.globals.size}" }
         val globals = "${ExecutionStateType.globalsState}${gblsAmountHex}"
 
         // Table
@@ -470,13 +535,13 @@ class WOODState(woodResponse: WOODDumpResponse) {
         val tblSizeHex = HexaEncoder.serializeUInt32BE(wr.table.elements.size)
         val tbl = "${ExecutionStateType.tableState}${tblInitHex}${tblMaxHex}${tblSizeHex}"
 
-        println("Table:  init=${wr.table.init} max=${wr.table.max} size=${wr.table.elements.size}")
+        Trace.debug { "Table:  init=${wr.table.init} max=${wr.table.max} size=${wr.table.elements.size}" }
         // Memory
         val memInitHex = HexaEncoder.serializeUInt32BE(wr.memory.init)
         val memMaxHex = HexaEncoder.serializeUInt32BE(wr.memory.max)
         val memPagesHex = HexaEncoder.serializeUInt32BE(wr.memory.pages)
         val mem = "${ExecutionStateType.memState}${memMaxHex}${memInitHex}${memPagesHex}"
-        println("Mem: max=${wr.memory.max} init=${wr.memory.init}  pages=${wr.memory.pages}")
+        Trace.debug { "Mem: max=${wr.memory.max} init=${wr.memory.init}  pages=${wr.memory.pages}" }
         val payload = "${globals}${tbl}${mem}"
 
         stateMsgs.addPayload(payload)
@@ -496,36 +561,38 @@ class WOODState(woodResponse: WOODDumpResponse) {
         if (validTypes.indexOf(frame.type) == -1) {
             throw Error("received unknown frame type ${frame.type}")
         }
-        val type = HexaEncoder.serializeUInt8(frame.type)
+        val sb = StringBuilder(48)
+        HexaEncoder.appendUInt8(sb, frame.type)
         val bigEndian = true
-        val sp = HexaEncoder.serializeInt32(frame.sp, bigEndian)
-        val fp = HexaEncoder.serializeInt32(frame.fp, bigEndian)
-        val ra = this.serializePointer(frame.ra)
-        var rest = ""
-        var res_str = ""; //TODO remove
+        HexaEncoder.appendUInt(sb, frame.sp, 4, bigEndian)
+        HexaEncoder.appendUInt(sb, frame.fp, 4, bigEndian)
+        HexaEncoder.appendUInt32BE(sb, frame.ra)
         if (frame.type == FRAME_FUNC_TYPE) {
             val fidxInt = frame.fidx.slice(2 ..< frame.fidx.length).toInt(16)
-            rest = HexaEncoder.serializeUInt32BE(fidxInt)
-            res_str = "fun_idx=${fidxInt}"
+            HexaEncoder.appendUInt32BE(sb, fidxInt)
         }
         else if (frame.type == FRAME_PROXY_GUARD_TYPE || frame.type == FRAME_CALLBACK_GUARD_TYPE) {
             // Nothing has to happen
         }
         else {
-            rest = this.serializePointer(frame.block_key)
-            res_str = "block_key=${frame.block_key}"
+            HexaEncoder.appendUInt32BE(sb, frame.block_key)
         }
-        println("Frame: type=${frame.type} sp=${frame.sp} fp=${frame.fp} ra=${frame.ra} ${res_str}")
-        return "${type}${sp}${fp}${ra}${rest}"
+        Trace.trace {
+            val rest = when (frame.type) {
+                FRAME_FUNC_TYPE -> "fun_idx=${frame.fidx}"
+                FRAME_PROXY_GUARD_TYPE, FRAME_CALLBACK_GUARD_TYPE -> ""
+                else -> "block_key=${frame.block_key}"
+            }
+            "Frame: type=${frame.type} sp=${frame.sp} fp=${frame.fp} ra=${frame.ra} ${rest}"
+        }
+        return sb.toString()
     }
 
-    private fun serializeException(stateMsgs: HexaStateMessages) {
+    private fun serializeException(stateMsgs: StateMessages) {
         if (this.woodResponse.pc_error == null) {
             return
         }
-        println("==========")
-        println("PC_ERROR")
-        println("----------")
+        traceSection("PC_ERROR")
         val pcError = this.serializePointer(this.woodResponse.pc_error)
         var exceptionMsg = ""
         var exceptionMsgSize = 0
@@ -533,42 +600,39 @@ class WOODState(woodResponse: WOODDumpResponse) {
             exceptionMsg = this.woodResponse.exception_msg
             exceptionMsgSize = exceptionMsg.length
         }
-        println("PC_ERROR: pc_error=${this.woodResponse.pc_error} exception_msg(#${exceptionMsgSize} chars)=${exceptionMsg}")
+        Trace.debug { "PC_ERROR: pc_error=${this.woodResponse.pc_error} exception_msg(#${exceptionMsgSize} chars)=${exceptionMsg}" }
         val sizeInHexa = HexaEncoder.serializeUInt32BE(exceptionMsgSize)
         val msgInHexa = HexaEncoder.serializeString(exceptionMsg)
         val payload = "${ExecutionStateType.errorState}${pcError}${sizeInHexa}${msgInHexa}"
         stateMsgs.addPayload(payload)
     }
 
-    private fun serializeCallbacksMapping(stateMsgs: HexaStateMessages) {
+    private fun serializeCallbacksMapping(stateMsgs: StateMessages, mappings: List<String>?) {
         // | Mappings type | amountMapings | CallbackMapping |   Return Adress  | FID or Block ID
         // |  1*2 bytes |   4*2bytes   |   4*2bytes   | serializePointer | 4*2bytes or serializePointer
         // callbacks": [{"interrupt_37": [1]}, {"interrupt_39": [2]}]
 
-        if (this.woodResponse.callbacks == null) {
+        if (this.woodResponse.callbacks == null || mappings == null) {
             return
         }
-        println("==============")
-        println("CallbackMapping")
-        println("--------------")
-        println("Total Mappings ${this.woodResponse.callbacks.size}")
+        traceSection("CallbackMapping")
+        Trace.debug { "Total Mappings ${this.woodResponse.callbacks.size}" }
 
-        val ws = this
-        var mappings = this.woodResponse.callbacks.map{ f -> ws.serializeCallbackMapping(f) }
         val nrBytesUsedForAmountMappings = 2 * 2
         val headerSize = ExecutionStateType.callbacksState.length + nrBytesUsedForAmountMappings
-        while (mappings.size != 0) {
-            val fit = stateMsgs.howManyFit(headerSize, mappings)
+        var start = 0
+        while (start < mappings.size) {
+            val fit = stateMsgs.howManyFit(headerSize, mappings, start)
             if (fit == 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
             val amountMappings = HexaEncoder.serializeUInt32BE(fit)
-            val fms = mappings .slice(0 ..< fit).joinToString("")
-            println("msg: amountMappings=${fit}")
+            val fms = mappings.subList(start, start + fit).joinToString("")
+            Trace.debug { "msg: amountMappings=${fit}" }
             val payload = "${ExecutionStateType.callbacksState}${amountMappings}${fms}"
             stateMsgs.addPayload(payload)
-            mappings = mappings .slice(fit ..< mappings.size)
+            start += fit
         }
     }
 
@@ -591,29 +655,25 @@ class WOODState(woodResponse: WOODDumpResponse) {
         return "${InterruptTypes.interruptProxyCall}${fidxHex}${argsHex}"
     }
 
-    private fun serializeIO(stateMsgs: HexaStateMessages) {
+    private fun serializeIO(stateMsgs: StateMessages) {
         if (woodResponse.io == null) {
             return
         }
-        println("==============")
-        println("IO")
-        println("--------------")
+        traceSection("IO")
         for (ioState in woodResponse.io) {
-            println(HexaEncoder.serializeString(ioState.key) + HexaEncoder.serializeString("\u0000"))
+            Trace.trace { HexaEncoder.serializeString(ioState.key) + HexaEncoder.serializeString("\u0000") }
         }
         serializeList(stateMsgs, ExecutionStateType.ioState, woodResponse.io) {
             HexaEncoder.serializeString(it.key) + HexaEncoder.serializeString("\u0000") + HexaEncoder.serializeBool(it.output) + HexaEncoder.serializeUInt32BE(it.value)
         }
     }
 
-    private fun serializeOverrides(stateMsgs: HexaStateMessages) {
+    private fun serializeOverrides(stateMsgs: StateMessages) {
         if (woodResponse.overrides == null) {
             return
         }
-        println("==============")
-        println("Overrides")
-        println("--------------")
-        println("Found ${woodResponse.overrides.size} active overrides.")
+        traceSection("Overrides")
+        Trace.debug { "Found ${woodResponse.overrides.size} active overrides." }
         serializeList(stateMsgs, ExecutionStateType.overridesState, woodResponse.overrides) {
             HexaEncoder.serializeUInt32BE(it.fidx) + HexaEncoder.serializeUInt32BE(it.arg) + HexaEncoder.serializeUInt32BE(it.return_value)
         }
@@ -629,85 +689,86 @@ class WOODState(woodResponse: WOODDumpResponse) {
      * | Type    | Count   | Element 1             | Element 2             | ...
      * | 2 bytes | 2 bytes | serializeElement(el1) | serializeElement(el2) | ...
      */
-    private fun <T> serializeList(stateMsgs: HexaStateMessages, execState: ExecutionStateType, list: List<T>, serializeElement: (T) -> String) {
+    private fun <T> serializeList(stateMsgs: StateMessages, execState: ExecutionStateType, list: List<T>, serializeElement: (T) -> String) {
         if (list.size >= 256) {
             System.err.println("WARNING: count might not fit!")
         }
         val elementCount = HexaEncoder.serializeUInt8(list.size)
         val headerSize = execState.length + elementCount.length
-        var serializedElements = list.map { serializeElement(it) }
+        val serializedElements = list.map { serializeElement(it) }
 
         // Send an empty list.
         if (serializedElements.isEmpty()) {
             stateMsgs.addPayload("${execState}${elementCount}")
         }
 
-        while (serializedElements.isNotEmpty()) {
-            val fitCount = stateMsgs.howManyFit(headerSize, serializedElements)
+        var start = 0
+        while (start < serializedElements.size) {
+            val fitCount = stateMsgs.howManyFit(headerSize, serializedElements, start)
             if (fitCount == 0) {
                 stateMsgs.forceNewMessage()
                 continue
             }
 
-            val partialListPayload = serializedElements.slice(0 ..< fitCount).joinToString("")
-            serializedElements = serializedElements.slice(fitCount ..< serializedElements.size)
+            val partialListPayload = serializedElements.subList(start, start + fitCount).joinToString("")
+            start += fitCount
             val payload = "${execState}${HexaEncoder.serializeUInt8(fitCount)}${partialListPayload}"
-            println("execState = $execState")
-            println("elementCount = $elementCount")
-            println("partialListPayload = $partialListPayload")
+            Trace.trace { "execState = $execState" }
+            Trace.trace { "elementCount = $elementCount" }
+            Trace.trace { "partialListPayload = $partialListPayload" }
             stateMsgs.addPayload(payload)
         }
     }
 
     companion object {
+        /**
+         * Changed ranges of memory that are at most this many bytes apart are sent as one range, the equal bytes in
+         * between cost less than the header of another memory message.
+         */
+        const val MEMORY_RANGE_GAP = 16
+
+        /**
+         * The amount of elements of a section that are encoded together on one thread.
+         */
+        const val PARALLEL_CHUNK = 1024
+
         fun serializeValue(value: WasmStackValue, includeType: Boolean = true): String {
             // |   Type      |       value       |
             // | 1 * 2 bytes |  4*2 or 8*2 bytes |
+            val sb = StringBuilder(18)
             var type = -1
-            var v = ""
             var type_str = ""
 
             if (value.type == "i32" || value.type === "I32") {
-                if (value.value < 0) {
-                v = HexaEncoder.serializeInt32LE(value.value.toInt())
-            }
-                else {
-                v = HexaEncoder.serializeUInt32LE(value.value.toInt())
-            }
                 type = 0
                 type_str = "i32"
             }
             else if (value.type == "i64" || value.type == "I64") {
-                if (value.value < 0) {
-                v = HexaEncoder.serializeBigUInt64LE(value.value)
-            }
-                else {
-                v = HexaEncoder.serializeBigUInt64LE(value.value)
-            }
                 type = 1
                 type_str = "i64"
             }
             else if (value.type == "f32" || value.type == "F32") {
-                v = HexaEncoder.serializeFloatLE(value.value.toFloat())
                 type = 2
                 type_str = "f32"
             }
             else if (value.type == "f64" || value.type == "F64") {
-                v = HexaEncoder.serializeDoubleLE(value.value.toDouble())
                 type = 3
                 type_str = "f64"
             }
             else {
                 throw Error("Got unexisting stack Value type ${value.type} value ${value.value}")
             }
-            println("Value: type=${type_str}(idx ${type}) val=${value.value}")
+            Trace.trace { "Value: type=${type_str}(idx ${type}) val=${value.value}" }
             if (includeType) {
-                val typeHex = HexaEncoder.serializeUInt8(type)
-                return "${typeHex}${v}"
+                HexaEncoder.appendUInt8(sb, type)
             }
-            else {
-                return v
+            when (type) {
+                0 -> HexaEncoder.appendUInt32LE(sb, value.value.toInt())
+                1 -> HexaEncoder.appendBigUInt64(sb, value.value, false)
+                2 -> HexaEncoder.appendFloat(sb, value.value.toFloat(), false)
+                else -> HexaEncoder.appendDouble(sb, value.value.toDouble(), false)
             }
+            return sb.toString()
         }
 
         fun serializeStackValueUpdate(value: WasmStackValue): String {
@@ -724,9 +785,21 @@ class WOODState(woodResponse: WOODDumpResponse) {
 
         fun parseSnapshot(line: String): WOODDumpResponse {
             val trimmed = line.trimEnd()
-            val objectMapper = ObjectMapper()
-            objectMapper.registerKotlinModule()
-            return objectMapper.readValue(trimmed, WOODDumpResponse::class.java)
+            return Json.snapshotReader.readValue(trimmed)
+        }
+
+        /**
+         * Parses [line] as a snapshot, or returns null if the line is not a snapshot.
+         */
+        fun parseSnapshotOrNull(line: String): WOODDumpResponse? {
+            if (!line.startsWith("{")) {
+                return null
+            }
+            return try {
+                parseSnapshot(line)
+            } catch (_: JsonProcessingException) {
+                null
+            }
         }
 
         fun fromLine(line: String): WOODState {
@@ -0,0 +1,70 @@
+import be.ugent.topl.mio.debugger.Debugger
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class AdaptiveCheckpointingTest {
+    // A checkpoint costs 1ms and an instruction 0.01ms.
+    private fun run(policy: Debugger.SnapshotPolicy.Adaptive, checkpoints: Int, stepBackEvery: Int = 0, stepBacks: Int = 1): List<Int> {
+        val changes = mutableListOf<Int>()
+        for (i in 1 .. checkpoints) {
+            val instructions = policy.interval
+            policy.checkpointReceived(instructions, 3000, 1.0 + 0.01 * instructions)?.let { changes.add(it) }
+            if (stepBackEvery > 0 && i % stepBackEvery == 0) {
+                repeat(stepBacks) { policy.steppedBack() }
+            }
+        }
+        return changes
+    }
+
+    @Test
+    fun `Test if the interval stays within the target overhead`() {
+        val policy = Debugger.SnapshotPolicy.Adaptive(0.5, initialInterval = 20)
+        // The user steps back all the time, so checkpoints should be as close as the overhead allows.
+        val changes = run(policy, 200, 1, 10)
+        // With a 50% overhead checkpoints can be 100 instructions apart.
+        assertEquals(100, policy.interval, "$changes")
+        assertEquals(Debugger.SnapshotPolicy.Checkpointing(100).serialize(), policy.serialize())
+    }
+
+    @Test
+    fun `Test if the interval grows when the user doesn't step back`() {
+        val policy = Debugger.SnapshotPolicy.Adaptive(0.5, maxInterval = 1000, initialInterval = 20)
+        run(policy, 200)
+        assertEquals(1000, policy.interval)
+
+        // Stepping back every other checkpoint brings it down towards the interval that minimises the total cost, which
+        // is sqrt(2 * 1ms / (1 / (2 * interval) * 0.01ms)) = interval for 400 instructions. Changes of less than a
+        // quarter are not sent to the VM.
+        run(policy, 1000, 2)
+        assertTrue(policy.interval in 256 .. 712, "${policy.interval}")
+    }
+
+    @Test
+    fun `Test if small changes don't retune the VM`() {
+        val policy = Debugger.SnapshotPolicy.Adaptive(0.5, initialInterval = 90)
+        assertNull(run(policy, 200, 1, 10).firstOrNull())
+        assertEquals(90, policy.interval)
+    }
+
+    @Test
+    fun `Test if a new interval is sent before the next command`() {
+        val vm = FakeEmulator()
+        Debugger(vm).use { debugger ->
+            val policy = Debugger.SnapshotPolicy.Adaptive(0.5, maxInterval = 100, initialInterval = 10)
+            debugger.setSnapshotPolicy(policy)
+            // Enough checkpoints to retune. The new interval depends on how fast the fake VM runs, it only has to differ.
+            debugger.continueFor(200)
+            assertNotEquals(10, policy.interval)
+            // The read thread doesn't send anything itself.
+            assertEquals(1, vm.received.count { it.startsWith("61") })
+            assertEquals(10, vm.interval)
+
+            debugger.continueFor(1)
+            assertEquals(listOf("6102" + "%08x".format(policy.interval), "08" + "00000001"), vm.received.takeLast(2))
+            assertEquals(policy.interval, vm.interval)
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import be.ugent.topl.mio.connections.Connection
+import be.ugent.topl.mio.debugger.Debugger
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import kotlin.test.assertEquals
+
+class BatchedWritesTest {
+    /**
+     * Buffers writes until they are flushed, like the serial connections do, and answers pause requests.
+     */
+    private class RecordingConnection : FakeConnection() {
+        private val pending = ByteArrayOutputStream()
+        val transmissions = mutableListOf<String>()
+
+        override fun write(buf: ByteArray) {
+            pending.write(buf)
+        }
+
+        override fun flush() {
+            val transmission = pending.toString()
+            pending.reset()
+            transmissions.add(transmission)
+            if (transmission.endsWith("03\n")) {
+                respond("PAUSE!\n")
+            }
+        }
+    }
+
+    private val overrides = listOf(
+        "806300" + "00000001" + "00000002\n",
+        "806300" + "00000003" + "00000004\n"
+    )
+
+    @Test
+    fun `Test if commands without a response are transmitted together`() {
+        val connection = RecordingConnection()
+        Debugger(connection).use { debugger ->
+            debugger.batch {
+                debugger.addPrimitiveOverride("c", 1, 2)
+                debugger.addPrimitiveOverride("c", 3, 4)
+                debugger.run()
+            }
+            debugger.run()
+        }
+        assertEquals(listOf(overrides.joinToString("") + "01\n", "01\n"), connection.transmissions)
+    }
+
+    @Test
+    fun `Test if batched commands are flushed with the next request`() {
+        val connection = RecordingConnection()
+        Debugger(connection).use { debugger ->
+            debugger.batch {
+                debugger.addPrimitiveOverride("c", 1, 2)
+                debugger.addPrimitiveOverride("c", 3, 4)
+                // Waits for the response, so it can't be held back.
+                debugger.pause()
+            }
+        }
+        assertEquals(overrides.joinToString("") + "03\n", connection.transmissions.first())
+    }
+}
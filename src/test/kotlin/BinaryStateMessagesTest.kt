@@ -0,0 +1,36 @@
+import be.ugent.topl.mio.woodstate.WOODState
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.HexFormat
+import java.util.zip.CRC32
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+
+class BinaryStateMessagesTest {
+    private val snapshot = "{\"pc\":156,\"breakpoints\":[0],\"callstack\":[{\"type\":0,\"fidx\":\"0x4\",\"sp\":-1,\"fp\":-1,\"idx\":0,\"block_key\":0,\"ra\":111},{\"type\":3,\"fidx\":\"0x0\",\"sp\":0,\"fp\":0,\"idx\":1,\"block_key\":144,\"ra\":146}],\"globals\":[{\"idx\":0,\"type\":\"i32\",\"value\":26},{\"idx\":1,\"type\":\"i32\",\"value\":1},{\"idx\":2,\"type\":\"i32\",\"value\":0}],\"table\":{\"max\":0, \"init\":0, \"elements\":[]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[0,100,7,3,0,200,1,1,0,65232]},\"br_table\":{\"size\":\"0x100\",\"labels\":[${List(256) { it % 3 }.joinToString(",")}]},\"stack\":[{\"idx\":0,\"type\":\"i32\",\"value\":1000}],\"callbacks\": [],\"events\": []}"
+
+    @Test
+    fun `Test if binary frames carry the same data as the hexadecimal messages`() {
+        val state = WOODState.fromLine(snapshot)
+        // Both have room for 505 bytes of payload per message.
+        val messages = state.toBinary(1024)
+        val frames = state.toFrames(521)
+        assertEquals(messages.size, frames.size)
+
+        for ((message, frame) in messages.zip(frames)) {
+            val buffer = ByteBuffer.wrap(frame)
+            assertEquals("66", String(frame, 0, 2))
+            assertEquals(0x62, frame[2].toInt())
+            val length = buffer.getInt(3)
+            assertEquals(frame.size - 11, length)
+
+            // The hexadecimal message without "62" and the terminator.
+            val expected = HexFormat.of().parseHex(message.substring(2, message.length - 2))
+            assertContentEquals(expected, frame.copyOfRange(7, 7 + length))
+
+            val crc = CRC32()
+            crc.update(frame, 7, length)
+            assertEquals(crc.value.toInt(), buffer.getInt(7 + length))
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import be.ugent.topl.mio.debugger.Debugger
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import kotlin.test.assertEquals
+
+class BulkBreakpointsTest {
+    /**
+     * Acknowledges breakpoint requests when they are flushed, like a VM behind a buffered connection. Starts with a
+     * checkpoint so the debugger has a current state to keep the breakpoints in.
+     */
+    private class FakeVm : FakeConnection() {
+        private val pending = ByteArrayOutputStream()
+        val transmissions = mutableListOf<List<String>>()
+
+        init {
+            respond("CHECKPOINT {\"instructions_executed\":1,\"fidx_called\":null,\"args\":null,\"snapshot\":{\"pc\":5,\"breakpoints\":[]}}\n")
+        }
+
+        override fun write(buf: ByteArray) {
+            pending.write(buf)
+        }
+
+        override fun flush() {
+            val lines = pending.toString().lines().filter { it.isNotEmpty() }
+            pending.reset()
+            transmissions.add(lines)
+            val acks = lines.joinToString("") { "BP ${it.substring(2).toInt(16)}!\n" }
+            respond(acks)
+        }
+    }
+
+    private fun withDebugger(action: (Debugger, FakeVm) -> Unit) {
+        val vm = FakeVm()
+        Debugger(vm).use { debugger ->
+            debugger.awaitFirstCheckpoint()
+            action(debugger, vm)
+        }
+    }
+
+    @Test
+    fun `Test if breakpoints are set and cleared in one transmission`() = withDebugger { debugger, vm ->
+        val addresses = (100 ..< 120).toList()
+        debugger.addBreakpoints(addresses)
+        assertEquals(1, vm.transmissions.size)
+        assertEquals(addresses.map { String.format("06%08x", it) }, vm.transmissions[0])
+        assertEquals(addresses, debugger.checkpoints.last()!!.snapshot.breakpoints)
+
+        assertEquals(addresses, debugger.disableAllBreakpoints())
+        assertEquals(2, vm.transmissions.size)
+        assertEquals(emptyList(), debugger.checkpoints.last()!!.snapshot.breakpoints)
+    }
+
+    @Test
+    fun `Test if replacing the breakpoints only sends the changes`() = withDebugger { debugger, vm ->
+        debugger.addBreakpoints(listOf(1, 2, 3))
+        vm.transmissions.clear()
+        debugger.setBreakpoints(listOf(2, 3, 4))
+        assertEquals(listOf(listOf(String.format("07%08x", 1), String.format("06%08x", 4))), vm.transmissions)
+        assertEquals(listOf(2, 3, 4), debugger.checkpoints.last()!!.snapshot.breakpoints)
+    }
+}
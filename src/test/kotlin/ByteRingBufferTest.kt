@@ -0,0 +1,59 @@
+import be.ugent.topl.mio.connections.ByteRingBuffer
+import be.ugent.topl.mio.connections.LoopbackConnection
+import be.ugent.topl.mio.debugger.Debugger
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import kotlin.concurrent.thread
+import kotlin.random.Random
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ByteRingBufferTest {
+    @Test
+    fun `Test if bytes arrive in order when the producer wraps around the buffer`() {
+        val data = Random(3).nextBytes(1_000_000)
+        val ring = ByteRingBuffer(4096)
+        val producer = thread {
+            val random = Random(4)
+            var offset = 0
+            while (offset < data.size) {
+                val length = minOf(random.nextInt(1, 3000), data.size - offset)
+                ring.write(data, offset, length)
+                offset += length
+            }
+            ring.close()
+        }
+        val received = ByteArrayOutputStream()
+        val buf = ByteArray(1500)
+        while (true) {
+            val count = ring.readBlocking(buf)
+            if (count < 0) break
+            received.write(buf, 0, count)
+        }
+        producer.join()
+        assertContentEquals(data, received.toByteArray())
+    }
+
+    @Test
+    fun `Test if a read drains everything that is available`() {
+        val ring = ByteRingBuffer(64)
+        repeat(5) { ring.write(byteArrayOf(it.toByte(), it.toByte())) }
+        assertEquals(10, ring.available)
+        val buf = ByteArray(16)
+        assertEquals(10, ring.read(buf))
+        assertContentEquals(byteArrayOf(0, 0, 1, 1, 2, 2, 3, 3, 4, 4), buf.copyOf(10))
+        assertEquals(0, ring.read(buf))
+    }
+
+    @Test
+    fun `Test if the debugger receives responses through a loopback connection`() {
+        val connection = LoopbackConnection { data, loopback ->
+            if (String(data) == "66\n") loopback.deliver("BINARY 4096!\n".toByteArray())
+        }
+        Debugger(connection).use { debugger ->
+            assertTrue(debugger.negotiateBinarySnapshots(5000))
+        }
+        assertEquals(0, connection.bytesAvailable())
+    }
+}
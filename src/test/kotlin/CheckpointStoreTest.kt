@@ -0,0 +1,71 @@
+import be.ugent.topl.mio.debugger.CheckpointStore
+import be.ugent.topl.mio.debugger.CheckpointTimeline
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODState
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+
+class CheckpointStoreTest {
+    private fun checkpoint(pc: Int): Checkpoint {
+        val memory = "[0,100,$pc,2,0,65434]"
+        val snapshot = WOODState.parseSnapshot("{\"pc\":$pc,\"breakpoints\":[],\"stack\":[{\"idx\":0,\"type\":\"i32\",\"value\":$pc}],\"memory\":{\"pages\":1,\"max\":2,\"init\":1,\"bytes\":$memory}}")
+        return Checkpoint(5, if (pc % 10 == 0) 2 else null, listOf(pc), snapshot)
+    }
+
+    @Test
+    fun `Test if spilled checkpoints are read back from the store`() {
+        val directory = Files.createTempDirectory("checkpoints").toFile()
+        CheckpointStore(directory, 4096).use { store ->
+            val timeline = CheckpointTimeline()
+            timeline.spillTo(store, 3)
+            val originals = (1 .. 50).map { checkpoint(it) }
+            for (checkpoint in originals) {
+                checkpoint.snapshot.memory!!.shareBlocksWith(timeline.lastOrNull()?.snapshot?.memory)
+                timeline.append(checkpoint, 5)
+            }
+            assert(store.bytesWritten > 4096) { "Expected more than one segment" }
+
+            for ((i, original) in originals.withIndex()) {
+                val restored = timeline[i * 5 + 4]!!
+                assertEquals(original.snapshot.pc, restored.snapshot.pc)
+                assertEquals(original.snapshot.stack, restored.snapshot.stack)
+                assertEquals(original.args, restored.args)
+                assertContentEquals(original.snapshot.memory!!.toByteArray(), restored.snapshot.memory!!.toByteArray())
+            }
+            // Retention policies can decide on spilled checkpoints without reading them back.
+            timeline.retainCheckpoints { _, checkpoint -> checkpoint.fidx_called != null }
+            assertEquals(listOf(10, 20, 30, 40, 50), timeline.indexedCheckpoints().map { it.value.snapshot.pc }.toList())
+        }
+        assertEquals(0, directory.listFiles()!!.size)
+        directory.delete()
+    }
+
+    @Test
+    fun `Test if the resident checkpoint keeps its changes`() {
+        val directory = Files.createTempDirectory("checkpoints").toFile()
+        CheckpointStore(directory).use { store ->
+            val timeline = CheckpointTimeline()
+            timeline.spillTo(store, 3)
+            for (pc in 1 .. 20) {
+                timeline.append(checkpoint(pc), 5)
+            }
+            timeline.keepResident(9)
+            val current = timeline[9]!!
+            assertSame(current, timeline[9])
+            current.snapshot.breakpoints = listOf(7)
+            // Written back once another time is kept resident.
+            timeline.keepResident(null)
+            assertEquals(listOf(7), timeline[9]!!.snapshot.breakpoints)
+
+            // A checkpoint added among the spilled ones (by a replay) is spilled too.
+            val written = store.bytesWritten
+            timeline[7] = checkpoint(100)
+            assert(store.bytesWritten > written) { "Expected the new checkpoint to be spilled" }
+            assertEquals(100, timeline[7]!!.snapshot.pc)
+        }
+        directory.delete()
+    }
+}
@@ -0,0 +1,72 @@
+import be.ugent.topl.mio.debugger.CheckpointTimeline
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class CheckpointTimelineTest {
+    private fun checkpoint(pc: Int, instructionsExecuted: Int = 1): Checkpoint {
+        val snapshot = WOODDumpResponse(pc, null, null, null, null, null, null, null, null, null, null, null, null, null)
+        return Checkpoint(instructionsExecuted, null, null, snapshot)
+    }
+
+    private fun expectedList(vararg checkpoints: Checkpoint): List<Checkpoint?> {
+        val list = mutableListOf<Checkpoint?>()
+        for (checkpoint in checkpoints) {
+            for (i in 0 ..< checkpoint.instructions_executed - 1) {
+                list.add(null)
+            }
+            list.add(checkpoint)
+        }
+        return list
+    }
+
+    @Test
+    fun `Test if the timeline behaves like the list padded with nulls`() {
+        val a = checkpoint(1)
+        val b = checkpoint(2, 5)
+        val c = checkpoint(3, 1000)
+        val timeline = CheckpointTimeline()
+        for (checkpoint in listOf(a, b, c)) {
+            timeline.append(checkpoint, checkpoint.instructions_executed)
+        }
+        val expected = expectedList(a, b, c).toMutableList()
+        assertEquals(expected, timeline)
+        assertEquals(3, timeline.checkpointCount)
+
+        expected[expected.size - 1] = null
+        timeline[timeline.size - 1] = null
+        assertEquals(expected, timeline)
+        assertEquals(2, timeline.checkpointCount)
+
+        expected.removeLast()
+        timeline.removeLast()
+        expected.add(2, checkpoint(4))
+        timeline.add(2, expected[2])
+        assertEquals(expected, timeline)
+    }
+
+    @Test
+    fun `Test nearest checkpoint lookup and truncation`() {
+        val timeline = CheckpointTimeline()
+        val a = checkpoint(1)
+        val b = checkpoint(2, 100)
+        timeline.append(a, a.instructions_executed)
+        timeline.append(b, b.instructions_executed)
+        timeline.append(checkpoint(3, 100_000), 100_000)
+
+        assertEquals(100_101, timeline.size)
+        assertEquals(IndexedValue(0, a), timeline.nearestAtOrBefore(99))
+        assertEquals(IndexedValue(100, b), timeline.nearestAtOrBefore(100))
+        assertEquals(IndexedValue(100, b), timeline.nearestAtOrBefore(50_000))
+        assertEquals(100_100, timeline.nearestAfter(100)?.index)
+
+        timeline.truncate(50_000)
+        assertEquals(50_000, timeline.size)
+        assertEquals(2, timeline.checkpointCount)
+        assertNull(timeline.nearestAfter(100))
+        assertEquals(b, timeline[100])
+        assertNull(timeline.last())
+    }
+}
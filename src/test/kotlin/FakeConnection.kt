@@ -0,0 +1,37 @@
+import be.ugent.topl.mio.connections.Connection
+import be.ugent.topl.mio.debugger.Debugger
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * Base of the fake VMs of the tests. The debugger reads what the fake VM passes to [respond], closing the connection
+ * ends the read thread of the debugger.
+ */
+abstract class FakeConnection : Connection {
+    private val responses = LinkedBlockingQueue<ByteArray>()
+
+    protected fun respond(data: String) {
+        responses.put(data.toByteArray())
+    }
+
+    override fun bytesAvailable() = responses.peek()?.size ?: 0
+    override fun read(buf: ByteArray) = if (bytesAvailable() > 0) readBlocking(buf) else 0
+    override fun readBlocking(buf: ByteArray): Int {
+        val data = responses.take()
+        if (data.isEmpty()) return -1
+        System.arraycopy(data, 0, buf, 0, data.size)
+        return data.size
+    }
+
+    override fun close() {
+        responses.put(ByteArray(0))
+    }
+}
+
+/**
+ * Waits until the first checkpoint of the VM has been received.
+ */
+fun Debugger.awaitFirstCheckpoint() {
+    while (checkpoints.size == 0) {
+        Thread.sleep(1)
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * A VM whose program counter is the amount of instructions executed and whose only global is the program counter
+ * divided by 7. It takes a checkpoint every 10 instructions (or the interval of the snapshot policy), at the end of a
+ * continue and when it stops at a breakpoint, and restores the program counter and breakpoints of loaded snapshots.
+ */
+class FakeEmulator : FakeConnection() {
+    var t = 0
+    private val breakpoints = mutableSetOf<Int>()
+    var interval = 10
+        private set
+    private var lastCheckpoint = -1
+    var loads = 0
+    var executed = 0
+    val received = mutableListOf<String>()
+
+    init {
+        checkpoint()
+    }
+
+    private fun checkpoint() {
+        val snapshot = "{\"pc\":$t,\"breakpoints\":[${breakpoints.joinToString(",")}],\"callstack\":[],\"globals\":[{\"idx\":0,\"type\":\"i32\",\"value\":${t / 7}}],\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[0,65536]},\"br_table\":{\"size\":\"0x100\",\"labels\":[]},\"stack\":[]}"
+        respond("CHECKPOINT {\"instructions_executed\":${t - lastCheckpoint},\"fidx_called\":null,\"args\":null,\"snapshot\":$snapshot}\n")
+        lastCheckpoint = t
+    }
+
+    @Synchronized
+    override fun write(buf: ByteArray) {
+        for (message in String(buf).split('\n').filter { it.isNotEmpty() }) {
+            received.add(message)
+            when (message.substring(0, 2)) {
+                "06", "07" -> {
+                    val address = message.substring(2).toInt(16)
+                    if (message.startsWith("06")) breakpoints.add(address) else breakpoints.remove(address)
+                    respond("BP $address!\n")
+                }
+                "08" -> continueFor(message.substring(2).toInt(16))
+                "61" -> {
+                    if (message.startsWith("02", 2)) interval = message.substring(4, 12).toInt(16)
+                    respond("Interrupt: 61\n")
+                }
+                "62" -> {
+                    // The program counter is the first section after the allocation message.
+                    if (message.startsWith("01", 10)) {
+                        t = message.substring(12, 20).toInt(16)
+                        lastCheckpoint = t
+                        loads++
+                        breakpoints.clear()
+                        if (message.startsWith("02", 20)) {
+                            val count = message.substring(22, 24).toInt(16)
+                            (0 ..< count).mapTo(breakpoints) { message.substring(24 + 8 * it, 32 + 8 * it).toInt(16) }
+                        }
+                    }
+                    respond(if (message.endsWith("01 ")) "done!\n" else "ack!\n")
+                }
+            }
+        }
+    }
+
+    private fun continueFor(n: Int) {
+        for (i in 0 ..< n) {
+            t++
+            executed++
+            if (t % interval == 0) checkpoint()
+            if (i < n - 1 && t in breakpoints) {
+                if (lastCheckpoint != t) checkpoint()
+                respond("AT $t!\n")
+                return
+            }
+        }
+        if (lastCheckpoint != t) checkpoint()
+        respond("DONE!\n")
+    }
+}
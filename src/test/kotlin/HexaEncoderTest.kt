@@ -1,5 +1,7 @@
 import org.junit.jupiter.api.Test
 import be.ugent.topl.mio.woodstate.HexaEncoder
+import java.nio.ByteBuffer
+import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
 
 class HexaEncoderTest {
@@ -19,4 +21,47 @@ class HexaEncoderTest {
         // 4 bytes
         assertEquals(4 * 2, HexaEncoder.serializeInt32(0, true).length)
     }
+
+    private val ints = listOf(0, 1, 0x7f, 0x80, 0xff, 0x1234, 0xabcdef, Int.MAX_VALUE, Int.MIN_VALUE, -1, -624485)
+
+    @Test
+    fun `Test if integers are encoded like String format`() {
+        for (n in ints) {
+            assertEquals(String.format("%08x", n), HexaEncoder.serializeUInt32BE(n))
+            assertEquals(HexaEncoder.hexStringBEToLE(String.format("%08x", n)), HexaEncoder.serializeUInt32LE(n))
+            assertEquals(String.format("%04x", n and 0xffff), HexaEncoder.serializeUInt16BE(n))
+            assertEquals(String.format("%02x", n and 0xff), HexaEncoder.serializeUInt8(n))
+            assertEquals(HexaEncoder.hexStringBEToLE(String.format("%06x", n and 0xffffff)), HexaEncoder.serializeUInt(n, 3, false))
+        }
+        for (n in ints.map { it.toLong() * 0x100000007 } + listOf(Long.MAX_VALUE, Long.MIN_VALUE)) {
+            assertEquals(String.format("%016x", n), HexaEncoder.serializeBigUInt64BE(n))
+            assertEquals(HexaEncoder.hexStringBEToLE(String.format("%016x", n)), HexaEncoder.serializeBigUInt64LE(n))
+        }
+        assertEquals("0000c03f", HexaEncoder.serializeFloatLE(1.5f))
+        assertEquals("3ff8000000000000", HexaEncoder.serializeDoubleBE(1.5))
+    }
+
+    @Test
+    fun `Test if strings and LEB128 are encoded like before`() {
+        assertEquals("68656c6c6f00", HexaEncoder.serializeString("hello\u0000"))
+        assertEquals("e9100", HexaEncoder.serializeString("\u00e9\u0100"))
+        assertEquals("00", HexaEncoder.convertToLEB128(0))
+        assertEquals("7F", HexaEncoder.convertToLEB128(-1))
+        assertEquals("C0BB78", HexaEncoder.convertToLEB128(-123456))
+    }
+
+    @Test
+    fun `Test appending to a StringBuilder and a ByteBuffer`() {
+        val sb = StringBuilder("22")
+        HexaEncoder.appendLEB128(sb, 624485)
+        HexaEncoder.appendBytes(sb, byteArrayOf(0, 0x61, -1, 0x10), 1, 2)
+        HexaEncoder.appendUInt32BE(sb, 0x01020304)
+        assertEquals("22E58E2661ff01020304", sb.toString())
+
+        val buffer = ByteBuffer.allocate(32)
+        HexaEncoder.putLEB128(buffer, 624485)
+        HexaEncoder.putUInt(buffer, 0x0102, 2, false)
+        HexaEncoder.putUInt(buffer, 0x01020304, 4, true)
+        assertContentEquals(byteArrayOf(0xe5.toByte(), 0x8e.toByte(), 0x26, 2, 1, 1, 2, 3, 4), buffer.array().copyOf(buffer.position()))
+    }
 }
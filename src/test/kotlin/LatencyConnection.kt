@@ -0,0 +1,71 @@
+import be.ugent.topl.mio.connections.Connection
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/**
+ * Wraps a [connection] and delays the data in both directions by [latencyMillis], to simulate a slow link to a
+ * microcontroller when testing with the emulator.
+ */
+class LatencyConnection(private val connection: Connection, private val latencyMillis: Long) : Connection {
+    private val writer = Executors.newSingleThreadScheduledExecutor()
+    private val received = LinkedBlockingQueue<Pair<Long, ByteArray>>()
+    private var pending: ByteArray? = null
+    private val reader = thread(isDaemon = true) {
+        val buffer = ByteArray(64 * 1024)
+        try {
+            while (!Thread.currentThread().isInterrupted) {
+                val count = connection.readBlocking(buffer)
+                if (count < 0) break
+                received.put(Pair(System.currentTimeMillis() + latencyMillis, buffer.copyOf(count)))
+            }
+        } catch (_: Exception) {
+        }
+        received.put(Pair(0L, ByteArray(0)))
+    }
+
+    override fun bytesAvailable(): Int {
+        val head = received.peek() ?: return pending?.size ?: 0
+        return if (head.first <= System.currentTimeMillis()) head.second.size else pending?.size ?: 0
+    }
+
+    override fun read(buf: ByteArray): Int {
+        return if (bytesAvailable() > 0) readBlocking(buf) else 0
+    }
+
+    override fun readBlocking(buf: ByteArray): Int {
+        val data = pending ?: run {
+            val (deliverAt, data) = received.take()
+            if (data.isEmpty()) return -1
+            val wait = deliverAt - System.currentTimeMillis()
+            if (wait > 0) Thread.sleep(wait)
+            data
+        }
+        val count = minOf(buf.size, data.size)
+        System.arraycopy(data, 0, buf, 0, count)
+        pending = if (count < data.size) data.copyOfRange(count, data.size) else null
+        return count
+    }
+
+    override fun write(buf: ByteArray) {
+        write(buf, 0, buf.size)
+    }
+
+    override fun write(buf: ByteArray, offset: Int, length: Int) {
+        val data = buf.copyOfRange(offset, offset + length)
+        writer.schedule({ connection.write(data) }, latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    // The wrapped connection may buffer its writes. The executor runs tasks with the same delay in order, so this
+    // flushes after the writes that came before it.
+    override fun flush() {
+        writer.schedule({ connection.flush() }, latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    override fun close() {
+        writer.shutdownNow()
+        connection.close()
+        reader.interrupt()
+    }
+}
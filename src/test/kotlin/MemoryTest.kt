@@ -0,0 +1,62 @@
+import be.ugent.topl.mio.woodstate.Memory
+import be.ugent.topl.mio.woodstate.WOODState
+import org.junit.jupiter.api.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+
+class MemoryTest {
+    @Test
+    fun `Test if unchanged blocks are shared with the previous checkpoint`() {
+        val first = Memory(2, 2, 0, ByteArray(2 * 0x10000) { (it % 7).toByte() })
+        first.shareBlocksWith(null)
+        val changed = first.toByteArray()
+        changed[100] = 5
+        changed[0x10000 + 3] = 3
+        val second = Memory(2, 2, 0, changed.copyOf())
+        second.shareBlocksWith(first)
+
+        assertEquals(2 * Memory.BLOCK_SIZE, second.storedSize(first))
+        assertContentEquals(changed, second.toByteArray())
+
+        // Modifying the restored memory doesn't affect the blocks that are shared with the previous checkpoint.
+        second.bytes[7] = 42
+        assertEquals(42, second.toByteArray()[7])
+        assertEquals(0, first.toByteArray()[7])
+    }
+
+    @Test
+    fun `Test if the memory of a snapshot is deserialized`() {
+        val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"memory\":{\"pages\":1,\"max\":2,\"init\":1,\"bytes\":[0,100,3,2,0,65434]}}")
+        val memory = snapshot.memory!!
+        assertEquals(1, memory.pages)
+        assertEquals(0x10000, memory.size())
+        assertEquals(3, memory.bytes[101])
+        assertEquals(0, memory.bytes[102])
+    }
+
+    @Test
+    fun `Test if only the changed ranges of memory are sent`() {
+        val current = Memory(32, 32, 0, ByteArray(32 * 0x10000) { (it % 7).toByte() })
+        current.shareBlocksWith(null)
+        val changed = current.toByteArray()
+        changed[100] = 5
+        changed[110] = 6
+        changed[0x10000 + 3] = 3
+        changed[0x10000 + 4] = 3
+        val target = Memory(32, 32, 0, changed)
+        assertEquals(listOf(100 .. 100, 110 .. 110, 0x10003 .. 0x10004), target.changedRanges(current))
+        assertEquals(listOf(100 .. 110, 0x10003 .. 0x10004), target.changedRanges(current, 16))
+        target.shareBlocksWith(current)
+        assertEquals(listOf(100 .. 110, 0x10003 .. 0x10004), target.changedRanges(current.copy(), 16))
+        assertEquals(emptyList(), target.changedRanges(target))
+        assertEquals(null, target.changedRanges(Memory(1, 1, 0, ByteArray(0x10000))))
+
+        val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"globals\":[],\"table\":{\"max\":0,\"init\":0,\"elements\":[]}}")
+            .copy(memory = target)
+        val full = WOODState(snapshot).toBinary()
+        val diff = WOODState(snapshot, current).toBinary()
+        assert(full.size > 10 && diff.size == 2) { "${full.size} messages, ${diff.size} with only the changes" }
+        // Header, start, end, compressed size and the (count, byte) pairs of the first range.
+        assert("06${"%08x".format(100)}${"%08x".format(110)}0000001601050103010401050106010001010102010301040106" in diff[1])
+    }
+}
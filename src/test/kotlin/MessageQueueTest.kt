@@ -44,4 +44,30 @@ class MessageQueueTest {
         t.join(1000)
         assertEquals(true, t.isAlive)
     }
+
+    @Test
+    fun `Test if outstanding responses are completed by their own response`() {
+        val queue = MessageQueue()
+        val first = queue.expect(6) { if (it == "BP 1!") 1 else null }
+        val second = queue.expect(6) { if (it == "BP 2!") 2 else null }
+        queue.push("BP 2!\r\nBP")
+        assertEquals(true, second.isDone)
+        assertEquals(false, first.isDone)
+        queue.push(" 1!\n")
+        assertEquals(1, first.join())
+        assertEquals(2, second.join())
+    }
+
+    @Test
+    fun `Test if handled messages are not used as a response`() {
+        val handled = mutableListOf<String>()
+        val queue = MessageQueue()
+        queue.addHandler {
+            if (it.startsWith("CHECKPOINT ")) handled.add(it) else false
+        }
+        val response = queue.expect { it }
+        queue.push("CHECKPOINT {}\nSTEP!\n")
+        assertEquals(listOf("CHECKPOINT {}"), handled)
+        assertEquals("STEP!", response.join())
+    }
 }
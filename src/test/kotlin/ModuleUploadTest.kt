@@ -0,0 +1,97 @@
+import be.ugent.topl.mio.debugger.Debugger
+import be.ugent.topl.mio.woodstate.HexaEncoder
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.HexFormat
+import kotlin.random.Random
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ModuleUploadTest {
+    /**
+     * Records everything that is written and confirms module updates like the VM does. If [frameSize] is set, the VM
+     * also accepts binary frames.
+     */
+    private class FakeVm(private val frameSize: Int? = null) : FakeConnection() {
+        val writes = mutableListOf<ByteArray>()
+
+        @Synchronized
+        override fun write(buf: ByteArray) {
+            writes.add(buf)
+            if (String(buf) == "66\n") {
+                if (frameSize != null) {
+                    respond("BINARY $frameSize!\n")
+                }
+            } else if (buf.last() == '\n'.code.toByte() || (buf[2] == 0x22.toByte() && buf[buf.size - 5] == 1.toByte())) {
+                respond("CHANGE Module!\n")
+            }
+        }
+    }
+
+    private val module = Random(7).nextBytes(100_000)
+
+    private fun upload(vm: FakeVm): List<Pair<Long, Long>> {
+        val file = File.createTempFile("module", ".wasm")
+        file.writeBytes(module)
+        val progress = mutableListOf<Pair<Long, Long>>()
+        Debugger(vm).use { debugger ->
+            debugger.negotiateBinarySnapshots(100)
+            vm.writes.clear()
+            debugger.updateModule(file.absolutePath) { sent, total -> progress.add(sent to total) }
+        }
+        file.delete()
+        return progress
+    }
+
+    @Test
+    fun `Test if a module is streamed as hexadecimal chunks`() {
+        val vm = FakeVm()
+        val progress = upload(vm)
+        val sent = ByteArrayOutputStream()
+        vm.writes.forEach { sent.write(it) }
+        val expected = HexaEncoder.appendLEB128(StringBuilder("22"), module.size).append(HexFormat.of().formatHex(module)).append('\n')
+        assertEquals(expected.toString(), sent.toString())
+        assertTrue(vm.writes.size > 2)
+        assertTrue(vm.writes.all { it.size < module.size })
+        assertEquals(module.size.toLong() to module.size.toLong(), progress.last())
+    }
+
+    @Test
+    fun `Test if a module is sent as binary frames when the VM accepts them`() {
+        val vm = FakeVm(4096)
+        val progress = upload(vm)
+        val received = ByteArrayOutputStream()
+        for ((i, frame) in vm.writes.withIndex()) {
+            assertTrue(frame.size <= 4096)
+            assertEquals(0x22, frame[2].toInt())
+            val buffer = ByteBuffer.wrap(frame)
+            val size = buffer.getInt(7)
+            received.write(frame, 11, size)
+            assertEquals(if (i == vm.writes.size - 1) 1 else 0, frame[11 + size].toInt())
+        }
+        assertContentEquals(module, received.toByteArray())
+        assertEquals(vm.writes.size, progress.size)
+        assertEquals(module.size.toLong(), progress.last().first)
+    }
+
+    @Test
+    fun `Test if reloading a module only sends the changed functions`() {
+        val original = javaClass.getResource("/fac.wasm")!!.readBytes()
+        val changed = original.copyOf()
+        changed[0x4c] = 2
+        val file = File.createTempFile("fac", ".wasm")
+        file.writeBytes(changed)
+        val vm = FakeVm()
+        Debugger(vm).use { debugger ->
+            debugger.loadedModule = original
+            debugger.reloadModule(file.absolutePath)
+            assertContentEquals(changed, debugger.loadedModule)
+        }
+        file.delete()
+        val body = HexFormat.of().formatHex(changed, 0x48, 0x48 + 0x17)
+        assertEquals(listOf("200117$body\n"), vm.writes.map { String(it) })
+    }
+}
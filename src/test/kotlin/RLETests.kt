@@ -2,6 +2,8 @@ import be.ugent.topl.mio.debugger.Debugger
 import org.junit.jupiter.api.Test
 import be.ugent.topl.mio.woodstate.WOODDumpResponse
 import be.ugent.topl.mio.woodstate.compressRLE
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import kotlin.random.Random
 import kotlin.test.assertEquals
 
@@ -45,5 +47,45 @@ class RLETests : DebuggerTestBase() {
     fun `Run length test`() {
         assertEquals("01050200010103050107", compressRLE("0500000105050507"))
         assertEquals("020502000101030502060103", compressRLE("0505000001050505060603"))
+        assertEquals(Pair(listOf("3f", "00"), 63), compressRLE(List(100) { "00" }, 4))
+    }
+
+    private fun decompressRLE(buffer: ByteBuffer, output: ByteArrayOutputStream) {
+        while (buffer.hasRemaining()) {
+            var count = 0
+            var shift = 0
+            do {
+                val b = buffer.get().toInt()
+                count = count or ((b and 0x7f) shl shift)
+                shift += 7
+            } while (b and 0x80 != 0)
+            val value = buffer.get().toInt()
+            repeat(count) { output.write(value) }
+        }
+    }
+
+    @Test
+    fun `Test if bounded run length encoding splits runs over the output buffers`() {
+        val random = Random(42)
+        val bytes = ByteArray(2 * 1024 * 1024)
+        for (i in 0 ..< 20000) {
+            bytes[random.nextInt(bytes.size)] = random.nextInt(256).toByte()
+        }
+        // Long runs of zeros at the end.
+        random.nextBytes(bytes, 0, 5000)
+
+        val decompressed = ByteArrayOutputStream()
+        var consumed = 0
+        var chunks = 0
+        while (consumed < bytes.size) {
+            val output = ByteBuffer.allocate(100 + chunks % 7)
+            val n = compressRLE(bytes, consumed, bytes.size, output)
+            assert(n > 0)
+            consumed += n
+            chunks++
+            decompressRLE(output.flip(), decompressed)
+            assertEquals(consumed, decompressed.size())
+        }
+        assertEquals(bytes.toList(), decompressed.toByteArray().toList())
     }
 }
\ No newline at end of file
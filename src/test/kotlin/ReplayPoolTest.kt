@@ -0,0 +1,51 @@
+import be.ugent.topl.mio.debugger.Debugger
+import be.ugent.topl.mio.debugger.ReplayPool
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class ReplayPoolTest {
+    @Test
+    fun `Test if the workers find the last time a global changed`() {
+        val vm = FakeEmulator()
+        val workers = List(3) { FakeEmulator() }
+        Debugger(vm).use { debugger ->
+            debugger.awaitFirstCheckpoint()
+            debugger.continueFor(100)
+            ReplayPool(debugger, workers).use { pool ->
+                // The global is t / 7, so it last changed at 98.
+                assertEquals(98, pool.lastChange { it.globals!![0].value })
+                assertEquals(91, pool.lastChange(to = 95) { it.globals!![0].value })
+                assertNull(pool.lastChange(from = 92, to = 97) { it.globals!![0].value })
+                assertNull(pool.lastChange { it.pc!! / 1000 })
+            }
+            // The main VM is left alone, it only reports the time to seek to.
+            assertEquals(100, vm.t)
+            assertEquals(0, vm.loads)
+        }
+        assertTrue(workers.sumOf { it.loads } > 0)
+    }
+
+    @Test
+    fun `Test if the debugger searches with its replay pool`() {
+        val vm = FakeEmulator()
+        val workers = List(3) { FakeEmulator() }
+        Debugger(vm).use { debugger ->
+            debugger.awaitFirstCheckpoint()
+            debugger.continueFor(100)
+            debugger.replayPool = ReplayPool(debugger, workers)
+            debugger.addBreakpoints(listOf(33, 47, 60))
+
+            assertEquals(60, debugger.reverseContinue())
+            assertEquals(60, vm.t)
+            assertEquals(47, debugger.reverseContinue())
+            assertEquals(47, debugger.time)
+
+            // The global is t / 7, it is 5 at 47 and last was 4 at 34.
+            debugger.stepBackUntil(WasmInfo(emptyList(), emptyList(), emptyList(), emptyList(), emptyList())) { it.globals!![0].value.toInt() < 5 }
+            assertEquals(34, debugger.time)
+            assertEquals(34, vm.t)
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import be.ugent.topl.mio.debugger.CheckpointTimeline
+import be.ugent.topl.mio.debugger.RetentionPolicy
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class RetentionPolicyTest {
+    private fun checkpoint(pc: Int, fidxCalled: Int? = null): Checkpoint {
+        val snapshot = WOODDumpResponse(pc, null, null, null, null, null, null, null, null, null, null, null, null, null)
+        return Checkpoint(10, fidxCalled, null, snapshot)
+    }
+
+    private fun run(policy: RetentionPolicy, checkpoints: Int, primitiveEvery: Int = 0): CheckpointTimeline {
+        val timeline = CheckpointTimeline()
+        for (i in 0 ..< checkpoints) {
+            val fidxCalled = if (primitiveEvery > 0 && i % primitiveEvery == 0) 1 else null
+            timeline.append(checkpoint(i, fidxCalled), 10)
+            policy.enforce(timeline) { t, c -> t == timeline.size - 1 || c.fidx_called != null }
+        }
+        return timeline
+    }
+
+    @Test
+    fun `Test if keep last keeps the most recent and the pinned checkpoints`() {
+        val timeline = run(RetentionPolicy.KeepLast(100), 10_000, 1000)
+        val pcs = timeline.indexedCheckpoints().map { it.value.snapshot.pc!! }.toList()
+        assertTrue(pcs.size <= 100 + 100 / 8 + 10)
+        assertEquals((9900 ..< 10_000).toList(), pcs.filter { it >= 9900 })
+        assertEquals((0 ..< 9000 step 1000).toList(), pcs.filter { it < 9000 })
+        assertEquals(100_000, timeline.size)
+    }
+
+    @Test
+    fun `Test if exponential thinning keeps recent checkpoints and thins older ones`() {
+        val timeline = run(RetentionPolicy.ExponentialThinning(1000), 100_000)
+        val times = timeline.indexedCheckpoints().map { it.index }.toList()
+        // All checkpoints of the last 1000 instructions (10 instructions apart) are still there.
+        assertEquals(100, times.count { it > timeline.size - 1 - 1000 })
+        // About 16 checkpoints for every doubling of the age.
+        assertTrue(times.size < 100 + 16 * 11, "${times.size} checkpoints kept")
+        assertEquals(9, timeline.nearestAtOrBefore(10)!!.index)
+    }
+
+    @Test
+    fun `Test retention policy parsing`() {
+        assertTrue(RetentionPolicy.parse("all") is RetentionPolicy.KeepAll)
+        assertEquals(RetentionPolicy.KeepLast(50), RetentionPolicy.parse("last:50"))
+        assertEquals(RetentionPolicy.MemoryBudget(256), RetentionPolicy.parse("megabytes:256"))
+        assertEquals(RetentionPolicy.ExponentialThinning(1000), RetentionPolicy.parse(" exponential:1000 "))
+        // These would fail while a checkpoint is handled, which clears the history.
+        for (setting in listOf("last:0", "last:-5", "megabytes:0", "exponential:0", "exponential:-1")) {
+            assertFailsWith<IllegalArgumentException>(setting) { RetentionPolicy.parse(setting) }
+        }
+    }
+}
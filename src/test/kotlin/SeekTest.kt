@@ -0,0 +1,108 @@
+import be.ugent.topl.mio.debugger.Debugger
+import be.ugent.topl.mio.debugger.MultiverseDebugger
+import be.ugent.topl.mio.debugger.MultiverseNode
+import org.junit.jupiter.api.Test
+import java.io.File
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertSame
+
+class SeekTest {
+    private fun withDebugger(action: (Debugger, FakeEmulator) -> Unit) {
+        val vm = FakeEmulator()
+        Debugger(vm).use { debugger ->
+            debugger.awaitFirstCheckpoint()
+            debugger.continueFor(100)
+            action(debugger, vm)
+        }
+    }
+
+    @Test
+    fun `Test if seeking moves through the history without removing it`() = withDebugger { debugger, vm ->
+        debugger.seek(35)
+        assertEquals(35, debugger.time)
+        assertEquals(35, vm.t)
+        assertEquals(35, debugger.currentCheckpoint()!!.snapshot.pc)
+        assertEquals(101, debugger.checkpoints.size)
+        // The replay from the checkpoint at 30 left a checkpoint behind.
+        assertNotNull(debugger.checkpoints[35])
+        assertEquals(1, vm.loads)
+
+        // Going forwards, replaying from the current state is cheaper than restoring a snapshot.
+        val executed = vm.executed
+        debugger.seek(62)
+        assertEquals(62, vm.t)
+        assertEquals(27, vm.executed - executed)
+        assertEquals(1, vm.loads)
+
+        debugger.seek(100)
+        assertEquals(100, debugger.time)
+        assertEquals(100, vm.t)
+        debugger.continueFor(5)
+        assertEquals(106, debugger.checkpoints.size)
+        assertEquals(105, debugger.time)
+    }
+
+    @Test
+    fun `Test if continuing from the past drops the history after it`() = withDebugger { debugger, vm ->
+        debugger.seek(50)
+        assertEquals(1, vm.loads)
+        assertEquals(101, debugger.checkpoints.size)
+        debugger.continueFor(5)
+        assertEquals(56, debugger.checkpoints.size)
+        assertEquals(55, debugger.time)
+        assertEquals(55, debugger.currentCheckpoint()!!.snapshot.pc)
+    }
+
+    @Test
+    fun `Test if reverse continue finds the previous breakpoint hits`() = withDebugger { debugger, vm ->
+        debugger.addBreakpoints(listOf(33, 47, 60))
+
+        // The intervals after 60 are replayed once, the checkpoint at 60 is a hit without replaying.
+        var executed = vm.executed
+        assertEquals(60, debugger.reverseContinue())
+        assertEquals(60, vm.t)
+        assertEquals(40, vm.executed - executed)
+        assertEquals(5, vm.loads)
+
+        // The hit at 47 leaves a checkpoint behind that is restored.
+        executed = vm.executed
+        assertEquals(47, debugger.reverseContinue())
+        assertEquals(47, debugger.time)
+        assertEquals(47, vm.t)
+        assertEquals(20, vm.executed - executed)
+
+        assertEquals(33, debugger.reverseContinue())
+        assertEquals(null, debugger.reverseContinue())
+        assertEquals(33, debugger.time)
+        assertEquals(33, vm.t)
+        assertEquals(101, debugger.checkpoints.size)
+        assertEquals(listOf(33, 47, 60), debugger.currentCheckpoint()!!.snapshot.breakpoints)
+    }
+
+    @Test
+    fun `Test if seeking moves the current node of the multiverse graph`() {
+        val binary = WasmBinary(File("fake.wasm"), WasmInfo(emptyList(), emptyList(), emptyList(), emptyList(), emptyList()))
+        // Started after construction like the UI does, the graph doesn't exist yet while the Debugger is constructed.
+        MultiverseDebugger(FakeEmulator(), binary, "wdcli", false).use { debugger ->
+            debugger.startReading()
+            debugger.awaitFirstCheckpoint()
+            debugger.continueFor(100)
+            val end = debugger.graph.currentNode
+            // Every instruction is a node on the path from the root.
+            fun depth(node: MultiverseNode) = generateSequence(node) { it.parent }.count() - 1
+            assertEquals(100, depth(end))
+
+            debugger.seek(40)
+            assertEquals(40, depth(debugger.graph.currentNode))
+            debugger.seek(70)
+            assertEquals(70, depth(debugger.graph.currentNode))
+            val node75 = generateSequence(end) { it.parent }.elementAt(25)
+
+            // Continuing from the past walks along the nodes that are already in the graph.
+            debugger.continueFor(5)
+            assertEquals(76, debugger.checkpoints.size)
+            assertSame(node75, debugger.graph.currentNode)
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import be.ugent.topl.mio.debugger.CheckpointTimeline
+import be.ugent.topl.mio.debugger.StepBackPlanner
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.WOODDumpResponse
+import org.junit.jupiter.api.Test
+import kotlin.math.abs
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class StepBackPlannerTest {
+    private fun checkpoint(pc: Int, fidxCalled: Int? = null): Checkpoint {
+        val snapshot = WOODDumpResponse(pc, null, null, null, null, null, null, null, null, null, null, null, null, null)
+        return Checkpoint(1, fidxCalled, null, snapshot)
+    }
+
+    // Checkpoints at t = 0, 50 and 90, the pc doubles as the estimated upload size.
+    private fun timeline(barrierAt50: Boolean = false): CheckpointTimeline {
+        val timeline = CheckpointTimeline()
+        timeline.append(checkpoint(1000), 1)
+        timeline.append(checkpoint(1_000_000, if (barrierAt50) 3 else null), 50)
+        timeline.append(checkpoint(1_000_000), 40)
+        timeline.append(checkpoint(1000), 20)
+        return timeline
+    }
+
+    @Test
+    fun `Test if the cost model fits a fixed cost and a cost per unit`() {
+        val model = StepBackPlanner.CostModel(0.0, 0.0)
+        for (units in listOf(100L, 1000L, 5000L, 200L, 3000L)) {
+            model.record(units, 10 + 0.5 * units)
+        }
+        assertTrue(abs(model.fixedMillis - 10.0) < 1e-6, "${model.fixedMillis}")
+        assertTrue(abs(model.millisPerUnit - 0.5) < 1e-9, "${model.millisPerUnit}")
+        assertTrue(abs(model.estimate(1000) - 510.0) < 1e-6)
+    }
+
+    @Test
+    fun `Test if a checkpoint further back is restored when it is cheaper`() {
+        val planner = StepBackPlanner()
+        planner.uploadCost.record(1000, 10.0)
+        planner.uploadCost.record(1_000_000, 1000.0)
+        planner.replayCost.record(10, 5.1)
+        planner.replayCost.record(1000, 15.0)
+        // Restoring the checkpoints at 50 or 90 takes about a second, replaying 100 instructions from 0 is cheaper.
+        val plan = planner.plan(timeline(), 100, { it.fidx_called != null }) { it.snapshot.pc!!.toLong() }!!
+        assertEquals(0, plan.restore.index)
+        assertEquals(100, plan.replay.sum())
+
+        // Replay can't run past a primitive call, so then the nearest checkpoint is the best option.
+        val barrier = planner.plan(timeline(true), 100, { it.fidx_called != null }) { it.snapshot.pc!!.toLong() }!!
+        assertEquals(90, barrier.restore.index)
+        assertEquals(listOf(10), barrier.replay)
+    }
+
+    @Test
+    fun `Test if long replays are split to leave checkpoints behind`() {
+        val planner = StepBackPlanner()
+        planner.replayCost.record(100, 11.0)
+        planner.replayCost.record(10_000, 110.0)
+        // 10ms per continue, 0.01ms per instruction, so the remaining part has to be at least 4000 instructions.
+        val segments = planner.segments(100_000)
+        assertEquals(100_000, segments.sum())
+        assertEquals(listOf(50_000, 25_000, 12_500, 6250), segments.take(4))
+        assertTrue(segments.last() in 4000 ..< 8000)
+        assertEquals(listOf(3000), planner.segments(3000))
+    }
+}
@@ -0,0 +1,39 @@
+import be.ugent.topl.mio.Trace
+import be.ugent.topl.mio.woodstate.WOODState
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TraceTest {
+    private val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"callstack\":[{\"type\":0,\"fidx\":\"0x4\",\"sp\":-1,\"fp\":-1,\"idx\":0,\"block_key\":0,\"ra\":111}],\"globals\":[],\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[0,65536]},\"stack\":[{\"idx\":0,\"type\":\"i32\",\"value\":1000}]}")
+
+    @Test
+    fun `Test if messages are only built for enabled levels`() {
+        val messages = mutableListOf<Pair<Trace.Level, String>>()
+        Trace.sink = { level, message -> messages.add(Pair(level, message)) }
+        try {
+            var built = 0
+            Trace.level = Trace.Level.OFF
+            Trace.info { built++; "info" }
+            WOODState(snapshot).toBinary()
+            assertEquals(0, built)
+            assertEquals(0, messages.size)
+
+            Trace.level = Trace.Level.DEBUG
+            Trace.debug { built++; "debug" }
+            Trace.trace { built++; "trace" }
+            assertEquals(1, built)
+            WOODState(snapshot).toBinary()
+            assertTrue(messages.any { it.second == "PC: pc=156" })
+            assertTrue(messages.none { it.first == Trace.Level.TRACE })
+
+            Trace.level = Trace.Level.TRACE
+            WOODState(snapshot).toBinary()
+            assertTrue(messages.any { it.second.startsWith("Frame: type=0") })
+        } finally {
+            Trace.level = Trace.Level.OFF
+            Trace.sink = { _, message -> println(message) }
+        }
+        assertEquals(Trace.Level.TRACE, Trace.parseLevel(" Trace"))
+    }
+}
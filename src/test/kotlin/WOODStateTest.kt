@@ -11,4 +11,27 @@ class WOODStateTest {
         assertEquals("62000001f907006a00e6000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000 \n", messages[2], "Third message not equal!")
         assertEquals("62000000690700e700ff0000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000001 \n", messages[3], "Fourth message not equal!")
     }
+
+    @Test
+    fun `Test if large sections that are encoded concurrently are packed in order`() {
+        val elements = List(5000) { it * 7 }
+        val messages = WOODState.parseSnapshot("{\"pc\":156,\"globals\":[],\"table\":{\"max\":5000,\"init\":5000,\"elements\":[${elements.joinToString(",")}]},\"memory\":{\"pages\":0,\"max\":0,\"init\":0,\"bytes\":[]}}")
+            .let { WOODState(it).toBinary() }
+
+        val packed = mutableListOf<Int>()
+        for (message in messages.drop(1)) {
+            // Skip "62", the payload size, the done byte and the terminator.
+            var payload = message.substring(10, message.length - 4)
+            if (payload.startsWith("01")) {
+                payload = payload.substring(2 + 8)
+            }
+            while (payload.isNotEmpty()) {
+                assertEquals("05", payload.substring(0, 2))
+                val count = payload.substring(2, 10).toInt(16)
+                packed.addAll((0 ..< count).map { payload.substring(10 + it * 8, 18 + it * 8).toInt(16) })
+                payload = payload.substring(10 + count * 8)
+            }
+        }
+        assertEquals(elements, packed)
+    }
 }
@@ -0,0 +1,32 @@
+import be.ugent.topl.mio.debugger.WasmModule
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class WasmModuleTest {
+    // fac.wasm imports print_int and defines fac (fidx 1) and main (fidx 2).
+    private val module = javaClass.getResource("/fac.wasm")!!.readBytes()
+
+    @Test
+    fun `Test if function bodies are indexed after the imported functions`() {
+        val parsed = WasmModule(module)
+        assertEquals(1, parsed.importedFunctions)
+        assertEquals(listOf(1, 2), parsed.functions.map { it.fidx })
+        assertEquals(listOf(0x17, 0x13), parsed.functions.map { it.size })
+    }
+
+    @Test
+    fun `Test if only changed function bodies are reported`() {
+        assertEquals(emptyList(), WasmModule.changedFunctions(module, module.copyOf())!!.map { it.fidx })
+
+        // The i32.const 1 in fac becomes i32.const 2.
+        val changedBody = module.copyOf()
+        changedBody[0x4c] = 2
+        assertEquals(listOf(1), WasmModule.changedFunctions(module, changedBody)!!.map { it.fidx })
+
+        // A parameter of the first type becomes an i64, which needs a complete upload.
+        val changedType = module.copyOf()
+        changedType[0x0e] = 0x7e
+        assertNull(WasmModule.changedFunctions(module, changedType))
+    }
+}
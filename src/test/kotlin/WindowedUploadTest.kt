@@ -0,0 +1,95 @@
+import be.ugent.topl.mio.debugger.Debugger
+import be.ugent.topl.mio.woodstate.WOODState
+import org.junit.jupiter.api.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class WindowedUploadTest {
+    /**
+     * Acknowledges load snapshot messages like the VM does, after [latencyMillis]. The writes in [drop] are lost, the
+     * writes in [slow] are acknowledged after [slowMillis].
+     */
+    private class FakeVm(private val latencyMillis: Long, private val drop: Set<Int> = emptySet(), private val slow: Set<Int> = emptySet(), private val slowMillis: Long = 0) : FakeConnection() {
+        private val executor = Executors.newSingleThreadScheduledExecutor()
+        val received = mutableListOf<String>()
+        private var writes = 0
+
+        @Synchronized
+        override fun write(buf: ByteArray) {
+            val write = writes++
+            if (write in drop) {
+                return
+            }
+            val message = String(buf)
+            val response = if (message.endsWith("01 \n")) "done!\n" else "ack!\n"
+            executor.schedule({
+                synchronized(this) { received.add(message) }
+                respond(response)
+            }, if (write in slow) slowMillis else latencyMillis, TimeUnit.MILLISECONDS)
+        }
+
+        override fun close() {
+            executor.shutdownNow()
+            super.close()
+        }
+    }
+
+    private val snapshot = run {
+        val random = Random(42)
+        val runs = List(12000) { "${random.nextInt(256)},${random.nextInt(1, 6)}" }
+        val used = runs.sumOf { it.split(",")[1].toInt() }
+        WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"callstack\":[],\"globals\":[],\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[${runs.joinToString(",")},0,${0x10000 - used}]},\"br_table\":{\"size\":\"0x100\",\"labels\":[]},\"stack\":[]}")
+    }
+
+    private fun upload(window: Int, vm: FakeVm): Long {
+        val debugger = Debugger(vm)
+        debugger.uploadWindow = window
+        debugger.uploadTimeoutMillis = 500
+        val start = System.currentTimeMillis()
+        debugger.loadSnapshot(snapshot)
+        val time = System.currentTimeMillis() - start
+        debugger.close()
+        return time
+    }
+
+    @Test
+    fun `Test if a window of messages is sent before waiting for acknowledgements`() {
+        val messages = WOODState(snapshot).toBinary()
+        assertTrue(messages.size > 8)
+
+        val vm1 = FakeVm(20)
+        val sequential = upload(1, vm1)
+        val vm8 = FakeVm(20)
+        val windowed = upload(8, vm8)
+        assertEquals(messages, vm1.received)
+        assertEquals(messages, vm8.received)
+        println("Window 1: ${sequential}ms, window 8: ${windowed}ms")
+        assertTrue(windowed * 2 < sequential)
+    }
+
+    @Test
+    fun `Test if lost messages are sent again`() {
+        val messages = WOODState(snapshot).toBinary()
+        val vm = FakeVm(5, setOf(3))
+        upload(4, vm)
+        // Acknowledgements can't tell which message was lost, so the complete snapshot is sent again.
+        assertEquals(messages.size - 1 + messages.size, vm.received.size)
+        assertEquals(messages, vm.received.subList(messages.size - 1, vm.received.size))
+
+        val sequentialVm = FakeVm(5, setOf(3))
+        upload(1, sequentialVm)
+        assertEquals(messages.subList(0, 3) + messages, sequentialVm.received)
+    }
+
+    @Test
+    fun `Test if late acknowledgements are not taken for the messages sent again`() {
+        val messages = WOODState(snapshot).toBinary()
+        // The acknowledgement of the fourth message arrives after the timeout.
+        val vm = FakeVm(5, slow = setOf(3), slowMillis = 700)
+        upload(1, vm)
+        assertEquals(messages.subList(0, 4) + messages, vm.received)
+    }
+}
@@ -1,6 +1,8 @@
 package benchmarks
 
 import DebuggerTestBase
+import LatencyConnection
+import be.ugent.topl.mio.connections.ProcessConnection
 import be.ugent.topl.mio.debugger.Debugger
 import getBinaryInfo
 import org.junit.jupiter.api.Test
@@ -57,10 +59,39 @@ class Benchmarks : DebuggerTestBase() {
         }
     }
 
+    /**
+     * Steps through the program one instruction at a time and reports how many steps per second can be performed. Every
+     * step is a full round-trip (send the step command, wait for the response), so this measures the latency of the
+     * debugger's request/response pipeline rather than the speed of the VM.
+     */
+    @Test
+    fun `Measure stepping speed`() {
+        val writer = FileWriter(File("results-stepping-speed.csv"))
+        writer.write("Policy,Steps,Time(ms),Steps/s\n")
+        val steps = 500
+        for (policy in listOf(
+            Debugger.SnapshotPolicy.None(),
+            Debugger.SnapshotPolicy.Checkpointing(1),
+            Debugger.SnapshotPolicy.Checkpointing(10))) {
+            runWithDebugger("prime/prime-no-mem.wasm", useEmulator()) {
+                it.setSnapshotPolicy(policy)
+                val time = timeElapsed {
+                    it.step(steps)
+                }
+                val stepsPerSecond = steps * 1000.0 / time.coerceAtLeast(1)
+                println("$policy: $steps steps in $time ms ($stepsPerSecond steps/s)")
+                writer.write("${if(policy is Debugger.SnapshotPolicy.Checkpointing) policy.interval else 0}, $steps, $time, $stepsPerSecond\n")
+                writer.flush()
+            }
+        }
+        writer.close()
+    }
+
     /**
      * Executes 1000 instructions, then steps back 1, needing 999 instructions to be re-executed. Because checkpoints
      * are deleted, it first has to re-execute 999 then 1999 then 2999 and so on. Since it steps back one instruction it
-     * also needs to step forward.
+     * also needs to step forward. Once the planner has measured that replaying is expensive, long replays leave
+     * checkpoints behind, and later step backs start from those instead of the beginning.
      */
     @Test
     fun `Measure re-execution speed when stepping back`() {
@@ -88,6 +119,7 @@ class Benchmarks : DebuggerTestBase() {
                     it.checkpoints[it.checkpoints.size - 1] = null
                 }
                 println(timings)
+                println("Replay cost: ${it.planner.replayCost}, upload cost: ${it.planner.uploadCost}")
                 results.add(timings)
             }
         }
@@ -107,6 +139,39 @@ class Benchmarks : DebuggerTestBase() {
         writer.close()
     }
 
+    /**
+     * Measures how long it takes to step back on the emulator with a simulated link latency, for different amounts of
+     * snapshot messages that can be sent before waiting for an acknowledgement.
+     */
+    @Test
+    fun `Measure step back with link latency`() {
+        val wasmFile = "prime/prime.wasm"
+        val binaryInfo = getBinaryInfo(config.symbolicWdcliPath, getFile(wasmFile).absolutePath)
+        val writer = FileWriter(File("results-windowed-upload.csv"))
+        writer.write("Latency(ms),Window,Time(ms)\n")
+        for (latency in listOf(5L, 20L)) {
+            for (window in listOf(1, 2, 4, 8)) {
+                val connection = LatencyConnection(ProcessConnection(wdcliPath, getFile(wasmFile).path, "--no-socket"), latency)
+                val debugger = Debugger(connection)
+                debugger.uploadWindow = window
+                debugger.pause()
+                debugger.setSnapshotPolicy(Debugger.SnapshotPolicy.Checkpointing(1))
+                debugger.continueFor(20)
+                val times = 10
+                var totalTime = 0L
+                repeat(times) {
+                    totalTime += timeElapsed {
+                        debugger.stepBack(1, binaryInfo) {}
+                    }
+                }
+                debugger.close()
+                println("Latency ${latency}ms, window $window: ${totalTime / times.toDouble()}ms")
+                writer.write("$latency,$window,${totalTime / times.toDouble()}\n")
+            }
+        }
+        writer.close()
+    }
+
     private fun timeElapsed(action: () -> Unit): Long {
         val startTime = currentTimeMillis()
         action()
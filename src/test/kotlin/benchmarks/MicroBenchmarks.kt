@@ -0,0 +1,229 @@
+package benchmarks
+
+import be.ugent.topl.mio.Json
+import be.ugent.topl.mio.connections.LoopbackConnection
+import be.ugent.topl.mio.debugger.MessageQueue
+import be.ugent.topl.mio.woodstate.Checkpoint
+import be.ugent.topl.mio.woodstate.HexaEncoder
+import be.ugent.topl.mio.woodstate.WOODState
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.FileWriter
+import java.lang.System.nanoTime
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+
+/**
+ * Benchmarks of the host side parts of MIO that don't need a microcontroller or an emulator, they can be executed
+ * without a configuration. They are not part of the test task, run them with `./gradlew benchmark`.
+ */
+@Tag("benchmark")
+class MicroBenchmarks {
+    private fun checkpointLine(pc: Int, memoryRuns: String): String {
+        val labels = List(256) { 0 }.joinToString(",")
+        return "CHECKPOINT {\"instructions_executed\":1,\"fidx_called\":null,\"args\":null,\"snapshot\":{\"pc\":$pc," +
+                "\"breakpoints\":[],\"callstack\":[{\"type\":0,\"fidx\":\"0x4\",\"sp\":-1,\"fp\":-1,\"idx\":0,\"block_key\":0,\"ra\":111}," +
+                "{\"type\":3,\"fidx\":\"0x0\",\"sp\":0,\"fp\":0,\"idx\":1,\"block_key\":144,\"ra\":146}]," +
+                "\"globals\":[{\"idx\":0,\"type\":\"i32\",\"value\":26},{\"idx\":1,\"type\":\"i32\",\"value\":1}]," +
+                "\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":2,\"max\":2,\"init\":0,\"bytes\":[$memoryRuns]}," +
+                "\"br_table\":{\"size\":\"0x100\",\"labels\":[$labels]},\"stack\":[{\"idx\":0,\"type\":\"i32\",\"value\":$pc}]," +
+                "\"callbacks\":[],\"events\":[]}}"
+    }
+
+    private fun checkpointLines(count: Int): List<String> {
+        return List(count) { i ->
+            // Some memory that is touched by the program followed by untouched zero pages.
+            val touched = (0 ..< 200).joinToString(",") { j -> "${(i + j) % 256},${j % 7 + 1}" }
+            val touchedBytes = (0 ..< 200).sumOf { j -> j % 7 + 1 }
+            checkpointLine(100 + i, "$touched,0,${2 * 65536 - touchedBytes}")
+        }
+    }
+
+    /**
+     * Compares parsing CHECKPOINT messages the way it used to be done (a new mapper per message on a decoded string)
+     * with the shared reader that parses the bytes of the line directly.
+     */
+    @Test
+    fun `Measure checkpoint parsing`() {
+        val lines = checkpointLines(200)
+        val data = lines.joinToString("\n", postfix = "\n").toByteArray()
+        // Push the data in chunks like the read thread does.
+        val chunks = (data.indices step 64 * 1024).map { data.copyOfRange(it, minOf(it + 64 * 1024, data.size)) }
+        val writer = FileWriter(File("results-checkpoint-parsing.csv"))
+        writer.write("Method,Checkpoints,Time(ms)\n")
+
+        val times = 10
+        repeat(2) { warmup ->
+            var oldTime = 0L
+            var newTime = 0L
+            repeat(times) {
+                val parsed = mutableListOf<Checkpoint>()
+                var start = nanoTime()
+                for (line in String(data).split("\n")) {
+                    if (line.startsWith("CHECKPOINT ")) {
+                        parsed.add(ObjectMapper().registerKotlinModule().readValue(line.substring("CHECKPOINT ".length), Checkpoint::class.java))
+                    }
+                }
+                oldTime += nanoTime() - start
+                assertEquals(lines.size, parsed.size)
+
+                parsed.clear()
+                val queue = MessageQueue()
+                queue.addHandler("CHECKPOINT ") { bytes, offset, length ->
+                    parsed.add(Json.checkpointReader.readValue(bytes, offset, length))
+                }
+                start = nanoTime()
+                for (chunk in chunks) {
+                    queue.push(chunk, chunk.size)
+                }
+                newTime += nanoTime() - start
+                assertEquals(lines.size, parsed.size)
+            }
+            if (warmup == 1) {
+                println("New mapper per message: ${oldTime / times / 1e6}ms, shared reader: ${newTime / times / 1e6}ms")
+                writer.write("New mapper,${lines.size},${oldTime / times / 1e6}\n")
+                writer.write("Shared reader,${lines.size},${newTime / times / 1e6}\n")
+            }
+        }
+        writer.close()
+    }
+
+    /**
+     * Serialises a complete snapshot with many stack values, frames and globals, and compares encoding its stack
+     * values with String.format (as HexaEncoder used to do) to the lookup table encoder.
+     */
+    @Test
+    fun `Measure snapshot serialisation`() {
+        val stack = (0 ..< 2000).joinToString(",") { "{\"idx\":$it,\"type\":\"${listOf("i32", "i64", "f32", "f64")[it % 4]}\",\"value\":${it * 7919 - 5000}}" }
+        val frames = (0 ..< 500).joinToString(",") { "{\"type\":${if (it % 2 == 0) 0 else 3},\"fidx\":\"0x${it.toString(16)}\",\"sp\":${it - 1},\"fp\":${it - 1},\"idx\":$it,\"block_key\":${it * 3},\"ra\":${it * 5}}" }
+        val globals = (0 ..< 200).joinToString(",") { "{\"idx\":$it,\"type\":\"i32\",\"value\":${it * 31}}" }
+        val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"callstack\":[$frames],\"globals\":[$globals]," +
+                "\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[0,65536]}," +
+                "\"br_table\":{\"size\":\"0x100\",\"labels\":[${List(256) { it % 5 }.joinToString(",")}]},\"stack\":[$stack]}")
+        val values = snapshot.stack!!
+
+        val times = 20
+        repeat(2) { warmup ->
+            var formatTime = 0L
+            var tableTime = 0L
+            var serializeTime = 0L
+            repeat(times) {
+                var start = nanoTime()
+                val formatted = values.map {
+                    when (it.type) {
+                        "i64" -> HexaEncoder.hexStringBEToLE(String.format("%016x", it.value))
+                        "f64" -> HexaEncoder.hexStringBEToLE(String.format("%016x", java.lang.Double.doubleToLongBits(it.value.toDouble())))
+                        "f32" -> HexaEncoder.hexStringBEToLE(String.format("%08x", java.lang.Float.floatToIntBits(it.value.toFloat())))
+                        else -> HexaEncoder.hexStringBEToLE(String.format("%08x", it.value.toInt()))
+                    }
+                }
+                formatTime += nanoTime() - start
+
+                start = nanoTime()
+                val sb = StringBuilder(values.size * 16)
+                for (value in values) {
+                    when (value.type) {
+                        "i64" -> HexaEncoder.appendBigUInt64(sb, value.value, false)
+                        "f64" -> HexaEncoder.appendDouble(sb, value.value.toDouble(), false)
+                        "f32" -> HexaEncoder.appendFloat(sb, value.value.toFloat(), false)
+                        else -> HexaEncoder.appendUInt32LE(sb, value.value.toInt())
+                    }
+                }
+                val encoded = sb.toString()
+                tableTime += nanoTime() - start
+                assertEquals(formatted.joinToString(""), encoded)
+
+                start = nanoTime()
+                WOODState(snapshot).toBinary()
+                serializeTime += nanoTime() - start
+            }
+            if (warmup == 1) {
+                println("Stack values with String.format: ${formatTime / times / 1e6}ms, with lookup table: ${tableTime / times / 1e6}ms")
+                println("Complete snapshot: ${serializeTime / times / 1e6}ms")
+            }
+        }
+    }
+
+    @Test
+    fun `Measure memory serialisation`() {
+        val pages = 32
+        val runs = (0 ..< 4000).joinToString(",") { "${it % 256},${it % 13 + 1}" }
+        val used = (0 ..< 4000).sumOf { it % 13 + 1 }
+        val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"globals\":[],\"table\":{\"max\":0,\"init\":0,\"elements\":[]},\"memory\":{\"pages\":$pages,\"max\":$pages,\"init\":0," +
+                "\"bytes\":[$runs,0,${pages * 65536 - used}]}}")
+        val times = 10
+        repeat(2) { warmup ->
+            var time = 0L
+            repeat(times) {
+                val start = nanoTime()
+                WOODState(snapshot).toBinary()
+                time += nanoTime() - start
+            }
+            if (warmup == 1) {
+                println("Serialising ${pages * 64} KiB of memory: ${time / times / 1e6}ms")
+            }
+        }
+    }
+
+    /**
+     * Packing used to rebuild the payload for every element it tried and copied the remaining elements after every
+     * message, which was quadratic in the size of the table and the callstack.
+     */
+    @Test
+    fun `Measure packing a large table and callstack`() {
+        val elements = (0 ..< 65536).joinToString(",") { "${it % 1000}" }
+        val frames = (0 ..< 5000).joinToString(",") { "{\"type\":${if (it % 2 == 0) 0 else 3},\"fidx\":\"0x${(it % 100).toString(16)}\",\"sp\":$it,\"fp\":$it,\"idx\":$it,\"block_key\":${it * 3},\"ra\":${it * 5}}" }
+        val snapshot = WOODState.parseSnapshot("{\"pc\":156,\"breakpoints\":[],\"callstack\":[$frames],\"globals\":[]," +
+                "\"table\":{\"max\":65536,\"init\":65536,\"elements\":[$elements]},\"memory\":{\"pages\":1,\"max\":1,\"init\":0,\"bytes\":[0,65536]}}")
+        val times = 5
+        repeat(2) { warmup ->
+            var time = 0L
+            var messages = 0
+            repeat(times) {
+                val start = nanoTime()
+                messages = WOODState(snapshot).toBinary().size
+                time += nanoTime() - start
+            }
+            if (warmup == 1) {
+                println("Packing 65536 table elements and 5000 frames in $messages messages: ${time / times / 1e6}ms")
+            }
+        }
+    }
+
+    /**
+     * Pushes data through a loopback connection in small chunks, like serial events arrive, while a reader drains it
+     * the way the read thread of the debugger does.
+     */
+    @Test
+    fun `Measure loopback connection throughput`() {
+        val chunk = ByteArray(256) { it.toByte() }
+        val total = 64L * 1024 * 1024
+        repeat(2) { warmup ->
+            val connection = LoopbackConnection()
+            val start = nanoTime()
+            val producer = thread {
+                var sent = 0L
+                while (sent < total) {
+                    connection.deliver(chunk)
+                    sent += chunk.size
+                }
+            }
+            val buf = ByteArray(64 * 1024)
+            var received = 0L
+            var reads = 0
+            while (received < total) {
+                received += connection.readBlocking(buf)
+                reads++
+            }
+            val time = nanoTime() - start
+            producer.join()
+            connection.close()
+            if (warmup == 1) {
+                println("Received ${total / 1024 / 1024} MiB in $reads reads: ${time / 1e6}ms (${total * 1000 / time} MB/s)")
+            }
+        }
+    }
+}